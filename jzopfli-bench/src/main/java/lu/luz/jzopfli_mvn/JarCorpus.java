@@ -0,0 +1,144 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generated archives resembling the artifacts of a build. The content is
+ * derived from a fixed seed, so every run compresses the same bytes.
+ */
+public enum JarCorpus {
+	/** Many small class files. */
+	CLASSES {
+		@Override
+		void write(ZipOutputStream zos, Random random) throws IOException {
+			writeClasses(zos, random, "com/example/app/", 400);
+		}
+	},
+	/** Few large text resources. */
+	RESOURCES {
+		@Override
+		void write(ZipOutputStream zos, Random random) throws IOException {
+			writeClasses(zos, random, "com/example/app/", 20);
+			for (int i = 0; i < 3; i++)
+				put(zos, "META-INF/resources/data" + i + ".xml", text(random, 512 * 1024));
+		}
+	},
+	/** Libraries nested in the archive, like in a web or a Spring Boot archive. */
+	NESTED {
+		@Override
+		void write(ZipOutputStream zos, Random random) throws IOException {
+			writeClasses(zos, random, "com/example/app/", 50);
+			for (int i = 0; i < 4; i++) {
+				ByteArrayOutputStream library = new ByteArrayOutputStream();
+				try (ZipOutputStream nested = new ZipOutputStream(library)) {
+					writeClasses(nested, random, "org/example/lib" + i + "/", 100);
+				}
+				put(zos, "WEB-INF/lib/lib" + i + ".jar", library.toByteArray());
+			}
+		}
+	},
+	/** Incompressible media, such as images already compressed. */
+	MEDIA {
+		@Override
+		void write(ZipOutputStream zos, Random random) throws IOException {
+			writeClasses(zos, random, "com/example/app/", 20);
+			for (int i = 0; i < 8; i++) {
+				byte[] image = new byte[128 * 1024];
+				random.nextBytes(image);
+				put(zos, "static/img/image" + i + ".png", image);
+			}
+		}
+	};
+
+	private static final String[] WORDS = { "java/lang/Object", "java/lang/String", "Ljava/util/List;", "<init>", "()V", "Code",
+			"LineNumberTable", "LocalVariableTable", "this", "value", "getName", "setName", "toString", "hashCode", "equals",
+			"StackMapTable", "SourceFile", "Exceptions", "java/io/IOException", "(Ljava/lang/String;)V", "RuntimeVisibleAnnotations",
+			"<property name=\"", "\" value=\"", "\"/>", "<bean id=\"", "</bean>", "class=\"", "config", "service", "repository" };
+
+	abstract void write(ZipOutputStream zos, Random random) throws IOException;
+
+	/**
+	 * Writes the archive into {@code directory}.
+	 *
+	 * @return the archive.
+	 */
+	Path create(Path directory) throws IOException {
+		Path file = directory.resolve(name().toLowerCase() + ".jar");
+		try (OutputStream os = Files.newOutputStream(file); ZipOutputStream zos = new ZipOutputStream(os)) {
+			write(zos, new Random(ordinal()));
+		}
+		return file;
+	}
+
+	private static void writeClasses(ZipOutputStream zos, Random random, String prefix, int count) throws IOException {
+		for (int i = 0; i < count; i++)
+			put(zos, prefix + "Class" + i + ".class", classFile(random, 1024 + random.nextInt(7 * 1024)));
+	}
+
+	private static void put(ZipOutputStream zos, String name, byte[] content) throws IOException {
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(content);
+		zos.closeEntry();
+	}
+
+	/**
+	 * @return bytes laid out like a class file: a header, a constant pool of
+	 *         common names and short runs of byte code.
+	 */
+	private static byte[] classFile(Random random, int size) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(size);
+		result.write(0xCA);
+		result.write(0xFE);
+		result.write(0xBA);
+		result.write(0xBE);
+		while (result.size() < size) {
+			if (random.nextInt(3) > 0) {
+				byte[] word = WORDS[random.nextInt(WORDS.length)].getBytes();
+				result.write(1);
+				result.write(0);
+				result.write(word.length);
+				result.write(word, 0, word.length);
+			} else
+				for (int i = 0; i < 8; i++)
+					result.write(random.nextInt(0xC0));
+		}
+		return result.toByteArray();
+	}
+
+	private static byte[] text(Random random, int size) {
+		StringBuilder result = new StringBuilder(size);
+		while (result.length() < size) {
+			result.append(WORDS[random.nextInt(WORDS.length)]);
+			result.append(random.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		return result.toString().getBytes();
+	}
+}
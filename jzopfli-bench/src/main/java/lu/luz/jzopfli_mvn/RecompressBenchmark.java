@@ -0,0 +1,196 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions.Strategy;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Recompresses a generated archive with the options of the plugin. Besides
+ * the archives recompressed per second, {@link Throughput} reports the
+ * uncompressed megabytes recompressed per second and {@link Ratio} the
+ * compression ratio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RecompressBenchmark {
+	@Param({ "CLASSES", "RESOURCES", "NESTED", "MEDIA" })
+	private JarCorpus corpus;
+	@Param({ "1", "15" })
+	private int numIterations;
+	@Param({ "true", "false" })
+	private boolean blockSplitting;
+	@Param({ "ZOPFLI_DYNAMIC_TREE", "ZOPFLI_FIXED_TREE" })
+	private Strategy strategy;
+	/** Threads of the pool entries are deflated on, 1 to deflate them in the calling thread. */
+	@Param({ "1" })
+	private int threads;
+
+	private Path directory;
+	private Path archive;
+	private long uncompressedSize;
+	private ExecutorService executor;
+	private ZopfliDeflaterOptions deflateOpts;
+
+	/**
+	 * Uncompressed megabytes recompressed, reported per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Throughput {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	/**
+	 * Size of the output relative to the uncompressed input. JMH sums events
+	 * over the measurement iterations and the forks, so each iteration
+	 * reports its share.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Ratio {
+		public double ratio;
+		private int share;
+
+		@Setup(Level.Iteration)
+		public void reset(BenchmarkParams params) {
+			ratio = 0;
+			share = params.getMeasurement().getCount() * Math.max(1, params.getForks());
+		}
+
+		void set(double value) {
+			ratio = value / share;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("jzopfli-bench");
+		archive = corpus.create(directory);
+		try (ZipReader reader = new ZipReader(archive)) {
+			for (ZipReader.Entry entry : reader.entries())
+				uncompressedSize += entry.size;
+		}
+		executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		deflateOpts = new ZopfliDeflaterOptions();
+		deflateOpts.setNumIterations(numIterations);
+		deflateOpts.setBlocSplitting(blockSplitting);
+		deflateOpts.setStrategy(strategy);
+		deflateOpts.setBlockSplittingMax(15);
+		deflateOpts.setMasterBlockSize(20000000);
+		deflateOpts.setWindowSize(32768);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (executor != null)
+			executor.shutdownNow();
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Benchmark
+	public long recompress(Throughput throughput, Ratio ratio) throws IOException {
+		ZipOptions zipOpts = new ZipOptions();
+		zipOpts.setNeverWorse(true);
+		zipOpts.setScreenRatio(0.98);
+		zipOpts.setTempDirectory(directory);
+		zipOpts.setExecutor(executor);
+		CountingChannel output = new CountingChannel();
+		ZopfliTools.recompress(archive, output, zipOpts, deflateOpts);
+		throughput.megabytes += uncompressedSize / 1e6;
+		ratio.set((double) output.size / uncompressedSize);
+		return output.size;
+	}
+
+	/**
+	 * Discards the output, counting its bytes.
+	 */
+	private static final class CountingChannel implements WritableByteChannel {
+		private long size;
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			src.position(src.limit());
+			size += length;
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
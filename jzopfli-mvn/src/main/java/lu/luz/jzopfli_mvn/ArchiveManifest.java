@@ -0,0 +1,139 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Remembers the archives already recompressed, with the options they were
+ * recompressed with, so they can be skipped. An archive is identified by
+ * its size and its end of central directory record, which holds the size
+ * and offset of the central directory and the comment; checking it only
+ * reads the end of the archive. A gzip file has no such record, it is
+ * identified by its size and the CRC-32 and size of its last member, in
+ * its last 8 bytes.
+ */
+public final class ArchiveManifest {
+	private final Path file;
+	private final Properties archives = new Properties();
+
+	/**
+	 * @param file
+	 *            the file the manifest is kept in.
+	 */
+	public ArchiveManifest(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest, if it exists.
+	 */
+	public synchronized void load() throws IOException {
+		try (InputStream is = Files.newInputStream(file)) {
+			archives.load(is);
+		} catch (NoSuchFileException e) {
+		}
+	}
+
+	public synchronized void store() throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		try (OutputStream os = Files.newOutputStream(file)) {
+			archives.store(os, "jzopfli");
+		}
+	}
+
+	/**
+	 * @param fingerprint
+	 *            describes the options the archive would be recompressed
+	 *            with.
+	 * @return {@code true} if {@code archive} was recompressed with the same
+	 *         options and did not change since.
+	 */
+	public boolean isUpToDate(Path archive, String fingerprint) throws IOException {
+		String recorded;
+		synchronized (this) {
+			recorded = archives.getProperty(key(archive));
+		}
+		return recorded != null && recorded.equals(value(archive, fingerprint));
+	}
+
+	/**
+	 * Records that {@code archive} was recompressed.
+	 */
+	public void record(Path archive, String fingerprint) throws IOException {
+		String value = value(archive, fingerprint);
+		synchronized (this) {
+			archives.setProperty(key(archive), value);
+		}
+	}
+
+	private static String key(Path archive) {
+		return archive.toAbsolutePath().normalize().toString();
+	}
+
+	private static String value(Path archive, String fingerprint) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update(ByteBuffer.allocate(8).putLong(0, Files.size(archive)));
+		digest.update(GzipTools.isGzip(archive) ? readTrailer(archive) : ZipReader.readEnd(archive));
+		digest.update((byte) 0);
+		digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+			result.append(String.format("%02x", b & 0xff));
+		return result.toString();
+	}
+
+	/**
+	 * @return the last 8 bytes of a gzip file, or all of it if it is
+	 *         shorter.
+	 */
+	private static byte[] readTrailer(Path gzip) throws IOException {
+		try (FileChannel channel = FileChannel.open(gzip)) {
+			long length = channel.size();
+			ByteBuffer trailer = ByteBuffer.allocate((int) Math.min(length, 8));
+			while (trailer.hasRemaining())
+				if (channel.read(trailer, length - trailer.capacity() + trailer.position()) < 0)
+					throw new EOFException(gzip.toString());
+			return trailer.array();
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Checks that a recompressed archive holds the same data as its source
+ * before the source is replaced. Every entry of the recompressed archive is
+ * inflated, on the threads of {@link ZipOptions#getExecutor()} if set, and
+ * its CRC-32 and size are compared with its own central directory and with
+ * the source entry of the same position. A nested archive whose data
+ * changed is compared entry by entry, recursively. Directories, which have
+ * no data, are ignored.
+ */
+public final class ArchiveVerifier {
+	private static final int BUFFER_SIZE = 8192;
+
+	private ArchiveVerifier() {
+	}
+
+	/**
+	 * Verifies a recompressed ZIP or gzip file.
+	 *
+	 * @throws ZipException
+	 *             if {@code recompressed} does not hold the data of
+	 *             {@code source}.
+	 */
+	public static void verify(Path source, Path recompressed, ZipOptions zipOpts) throws IOException {
+		if (GzipTools.isGzip(source)) {
+			verifyGzip(source, recompressed);
+			return;
+		}
+		try (ZipReader expected = new ZipReader(source); ZipReader actual = new ZipReader(recompressed)) {
+			verify(expected, actual, zipOpts, zipOpts.getExecutor());
+		}
+	}
+
+	private static void verify(final ZipReader expected, final ZipReader actual, final ZipOptions zipOpts, Executor executor) throws IOException {
+		List<ZipReader.Entry> sources = files(expected);
+		List<ZipReader.Entry> targets = files(actual);
+		if (sources.size() != targets.size())
+			throw new ZipException(actual.getName() + ": " + targets.size() + " entries instead of " + sources.size());
+
+		List<FutureTask<Void>> tasks = new ArrayList<>();
+		try {
+			for (int i = 0; i < sources.size(); i++) {
+				final ZipReader.Entry source = sources.get(i);
+				final ZipReader.Entry target = targets.get(i);
+				if (!source.name.equals(target.name))
+					throw new ZipException(actual.getName() + ": " + target.name + " instead of " + source.name);
+				FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						verify(expected, source, actual, target, zipOpts);
+						return null;
+					}
+				});
+				if (executor != null)
+					executor.execute(task);
+				tasks.add(task);
+			}
+			for (FutureTask<Void> task : tasks) {
+				task.run();
+				ZopfliTools.get(task);
+			}
+		} finally {
+			for (FutureTask<Void> task : tasks)
+				task.cancel(true);
+		}
+	}
+
+	private static void verify(ZipReader expected, ZipReader.Entry source, ZipReader actual, ZipReader.Entry target, ZipOptions zipOpts)
+			throws IOException {
+		String name = actual.getName() + "!" + target.name;
+		boolean readable = (target.flag & 1) == 0 && (target.method == ZipEntry.STORED || target.method == ZipEntry.DEFLATED);
+		if (readable) {
+			CRC32 crc = new CRC32();
+			long size = 0;
+			try (InputStream is = actual.open(target)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = is.read(buffer)) >= 0) {
+					crc.update(buffer, 0, read);
+					size += read;
+				}
+			}
+			if (crc.getValue() != target.crc || size != target.size)
+				throw new ZipException(name + ": data does not match its CRC-32 and size");
+		} else if (target.compressedSize != source.compressedSize)
+			throw new ZipException(name + ": raw data differs from the source");
+
+		if (target.crc == source.crc && target.size == source.size)
+			return;
+		if (!readable || !ZopfliTools.isZip(source.name))
+			throw new ZipException(name + ": data differs from the source");
+		try (SpillBuffer sourceData = read(expected, source, zipOpts);
+				SpillBuffer targetData = read(actual, target, zipOpts);
+				ZipReader nestedExpected = ZipReader.open(sourceData, expected.getName() + "!" + source.name);
+				ZipReader nestedActual = ZipReader.open(targetData, name)) {
+			verify(nestedExpected, nestedActual, zipOpts, null);
+		}
+	}
+
+	/**
+	 * Compares the data of the members of two gzip files, which can only be
+	 * read sequentially.
+	 */
+	private static void verifyGzip(Path source, Path recompressed) throws IOException {
+		long[] expected = checksum(source);
+		long[] actual = checksum(recompressed);
+		if (expected[0] != actual[0] || expected[1] != actual[1])
+			throw new ZipException(recompressed + ": data differs from the source");
+	}
+
+	/**
+	 * @return the CRC-32 and the size of the data of all the members of a
+	 *         gzip file, whose own checksums are verified while reading.
+	 */
+	private static long[] checksum(Path gzip) throws IOException {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		try (InputStream is = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(gzip), BUFFER_SIZE), BUFFER_SIZE)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buffer)) >= 0) {
+				crc.update(buffer, 0, read);
+				size += read;
+			}
+		}
+		return new long[] { crc.getValue(), size };
+	}
+
+	private static SpillBuffer read(ZipReader reader, ZipReader.Entry entry, ZipOptions zipOpts) throws IOException {
+		SpillBuffer buffer = new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory());
+		try (InputStream is = reader.open(entry)) {
+			byte[] chunk = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(chunk)) >= 0)
+				buffer.write(chunk, 0, read);
+		} catch (IOException | RuntimeException e) {
+			buffer.close();
+			throw e;
+		}
+		return buffer;
+	}
+
+	private static List<ZipReader.Entry> files(ZipReader reader) {
+		List<ZipReader.Entry> result = new ArrayList<ZipReader.Entry>();
+		for (ZipReader.Entry entry : reader.entries())
+			if (!entry.isDirectory())
+				result.add(entry);
+		return result;
+	}
+}
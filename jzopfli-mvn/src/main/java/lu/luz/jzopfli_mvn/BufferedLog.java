@@ -0,0 +1,155 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log keeping the messages of one archive until {@link #flush()}, so the
+ * output of archives processed concurrently is not interleaved.
+ */
+final class BufferedLog implements Log {
+	private static final int DEBUG = 0;
+	private static final int INFO = 1;
+	private static final int WARN = 2;
+	private static final int ERROR = 3;
+
+	private final Log target;
+	private final List<Object[]> messages = new ArrayList<Object[]>();
+
+	BufferedLog(Log target) {
+		this.target = target;
+	}
+
+	/**
+	 * Writes the buffered messages to the target log in one block.
+	 */
+	void flush() {
+		synchronized (target) {
+			for (Object[] message : messages) {
+				CharSequence content = (CharSequence) message[1];
+				Throwable error = (Throwable) message[2];
+				switch ((Integer) message[0]) {
+				case DEBUG:
+					target.debug(content, error);
+					break;
+				case INFO:
+					target.info(content, error);
+					break;
+				case WARN:
+					target.warn(content, error);
+					break;
+				default:
+					target.error(content, error);
+				}
+			}
+			messages.clear();
+		}
+	}
+
+	private synchronized void add(int level, CharSequence content, Throwable error) {
+		messages.add(new Object[] { level, content, error });
+	}
+
+	@Override
+	public boolean isDebugEnabled() {
+		return target.isDebugEnabled();
+	}
+
+	@Override
+	public void debug(CharSequence content) {
+		add(DEBUG, content, null);
+	}
+
+	@Override
+	public void debug(CharSequence content, Throwable error) {
+		add(DEBUG, content, error);
+	}
+
+	@Override
+	public void debug(Throwable error) {
+		add(DEBUG, null, error);
+	}
+
+	@Override
+	public boolean isInfoEnabled() {
+		return target.isInfoEnabled();
+	}
+
+	@Override
+	public void info(CharSequence content) {
+		add(INFO, content, null);
+	}
+
+	@Override
+	public void info(CharSequence content, Throwable error) {
+		add(INFO, content, error);
+	}
+
+	@Override
+	public void info(Throwable error) {
+		add(INFO, null, error);
+	}
+
+	@Override
+	public boolean isWarnEnabled() {
+		return target.isWarnEnabled();
+	}
+
+	@Override
+	public void warn(CharSequence content) {
+		add(WARN, content, null);
+	}
+
+	@Override
+	public void warn(CharSequence content, Throwable error) {
+		add(WARN, content, error);
+	}
+
+	@Override
+	public void warn(Throwable error) {
+		add(WARN, null, error);
+	}
+
+	@Override
+	public boolean isErrorEnabled() {
+		return target.isErrorEnabled();
+	}
+
+	@Override
+	public void error(CharSequence content) {
+		add(ERROR, content, null);
+	}
+
+	@Override
+	public void error(CharSequence content, Throwable error) {
+		add(ERROR, content, error);
+	}
+
+	@Override
+	public void error(Throwable error) {
+		add(ERROR, null, error);
+	}
+}
@@ -0,0 +1,92 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares the compression of identical contents among the entries of an
+ * archive. Only the entries whose CRC-32 and size are shared by another
+ * entry are candidates, so the compressed streams of unique entries are not
+ * kept. Concurrent compressions of the same content are merged: the first
+ * one runs, the others wait for it.
+ */
+final class Deduplicator {
+	private final Map<String, Integer> counts = new HashMap<String, Integer>();
+	private final ConcurrentMap<String, FutureTask<byte[]>> streams = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+	Deduplicator(List<ZipReader.Entry> entries) {
+		for (ZipReader.Entry entry : entries)
+			if (entry.size > 0) {
+				Integer count = counts.get(group(entry));
+				counts.put(group(entry), count == null ? 1 : count + 1);
+			}
+	}
+
+	/**
+	 * @return {@code true} if another entry may have the same content.
+	 */
+	boolean isDuplicate(ZipReader.Entry entry) {
+		Integer count = counts.get(group(entry));
+		return count != null && count > 1;
+	}
+
+	/**
+	 * @param key
+	 *            identifies the content and how it is compressed.
+	 * @param task
+	 *            compresses the content, unless it already was.
+	 * @return the raw DEFLATE stream.
+	 */
+	byte[] deflate(ZipReader.Entry entry, String key, Callable<byte[]> task, RecompressStatistics statistics) throws IOException {
+		if (!isDuplicate(entry)) {
+			try {
+				return task.call();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		FutureTask<byte[]> future = new FutureTask<byte[]>(task);
+		FutureTask<byte[]> existing = streams.putIfAbsent(key, future);
+		if (existing == null) {
+			future.run();
+			return ZopfliTools.get(future);
+		}
+		byte[] raw = ZopfliTools.get(existing);
+		if (statistics != null)
+			statistics.deduplicated(entry.size);
+		return raw;
+	}
+
+	private static String group(ZipReader.Entry entry) {
+		return entry.crc + ":" + entry.size;
+	}
+}
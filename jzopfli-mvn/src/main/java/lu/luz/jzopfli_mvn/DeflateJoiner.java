@@ -0,0 +1,302 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Concatenates raw DEFLATE streams compressed independently into one stream.
+ * The final block flag of every stream but the last is cleared, and each
+ * stream is appended at the bit where the previous one ends, so its blocks
+ * must be parsed to find where it ends. Stored blocks are aligned on a byte
+ * boundary, so they are written again with the padding and lengths of the
+ * bit where they land.
+ */
+final class DeflateJoiner {
+	private static final int MAX_BITS = 15;
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+	private static final Huffman FIXED_LENGTHS;
+	private static final Huffman FIXED_DISTANCES;
+	static {
+		int[] lengths = new int[288];
+		Arrays.fill(lengths, 0, 144, 8);
+		Arrays.fill(lengths, 144, 256, 9);
+		Arrays.fill(lengths, 256, 280, 7);
+		Arrays.fill(lengths, 280, 288, 8);
+		FIXED_LENGTHS = new Huffman(lengths, 0, 288);
+		Arrays.fill(lengths, 0, 30, 5);
+		FIXED_DISTANCES = new Huffman(lengths, 0, 30);
+	}
+
+	private byte[] out;
+	private int size;
+	private int bitBuffer;
+	private int bitCount;
+	private boolean finished;
+
+	DeflateJoiner(int capacity) {
+		out = new byte[Math.max(capacity, 64)];
+	}
+
+	/**
+	 * Appends a raw DEFLATE stream.
+	 *
+	 * @param last
+	 *            {@code true} for the last stream, whose final block flag is
+	 *            kept.
+	 */
+	void append(byte[] raw, boolean last) throws ZipException {
+		if (finished)
+			throw new IllegalStateException("Final stream already appended");
+		Scanner scanner = new Scanner(raw);
+		boolean isFinal;
+		do {
+			isFinal = scanner.bits(1) == 1;
+			int type = scanner.bits(2);
+			writeBits(isFinal && last ? 1 : 0, 1);
+			writeBits(type, 2);
+			if (type == 0) {
+				int length = scanner.stored();
+				if (bitCount > 0)
+					writeBits(0, 8 - bitCount);
+				writeBits(length, 16);
+				writeBits(length ^ 0xffff, 16);
+				copy(raw, scanner.position - 8L * length, scanner.position);
+			} else {
+				long body = scanner.position;
+				scanner.block(type);
+				copy(raw, body, scanner.position);
+			}
+		} while (!isFinal);
+
+		if (last) {
+			if (bitCount > 0)
+				writeBits(0, 8 - bitCount);
+			finished = true;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the joined stream held since the last
+	 *         {@link #drainTo(OutputStream)}, which appending more streams
+	 *         can only increase.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the complete bytes of the joined stream so far and forgets them,
+	 * so that a long stream is not held in memory. The bits of an incomplete
+	 * byte are kept until the next stream is appended.
+	 */
+	void drainTo(OutputStream os) throws IOException {
+		os.write(out, 0, size);
+		size = 0;
+	}
+
+	byte[] toByteArray() {
+		if (!finished)
+			throw new IllegalStateException("Final stream not appended");
+		return Arrays.copyOf(out, size);
+	}
+
+	private void copy(byte[] raw, long from, long to) {
+		long position = from;
+		while (position < to && (position & 7) != 0) {
+			writeBits((raw[(int) (position >>> 3)] >>> (position & 7)) & 1, 1);
+			position++;
+		}
+		int byteCount = (int) ((to - position) >>> 3);
+		if (bitCount == 0) {
+			ensureCapacity(byteCount);
+			System.arraycopy(raw, (int) (position >>> 3), out, size, byteCount);
+			size += byteCount;
+		} else {
+			for (int i = (int) (position >>> 3), end = i + byteCount; i < end; i++)
+				writeBits(raw[i] & 0xff, 8);
+		}
+		position += 8L * byteCount;
+		if (position < to)
+			writeBits(raw[(int) (position >>> 3)] & ((1 << (int) (to - position)) - 1), (int) (to - position));
+	}
+
+	private void writeBits(int value, int count) {
+		bitBuffer |= value << bitCount;
+		bitCount += count;
+		while (bitCount >= 8) {
+			ensureCapacity(1);
+			out[size++] = (byte) bitBuffer;
+			bitBuffer >>>= 8;
+			bitCount -= 8;
+		}
+	}
+
+	private void ensureCapacity(int count) {
+		if (size + count > out.length)
+			out = Arrays.copyOf(out, Math.max(size + count, out.length * 2));
+	}
+
+	/**
+	 * Canonical Huffman code, decoded one bit at a time.
+	 */
+	private static final class Huffman {
+		private final int[] count = new int[MAX_BITS + 1];
+		private final int[] symbol;
+
+		private Huffman(int[] lengths, int offset, int n) {
+			symbol = new int[n];
+			for (int i = 0; i < n; i++)
+				count[lengths[offset + i]]++;
+			int[] offsets = new int[MAX_BITS + 2];
+			for (int len = 1; len <= MAX_BITS; len++)
+				offsets[len + 1] = offsets[len] + count[len];
+			for (int i = 0; i < n; i++)
+				if (lengths[offset + i] != 0)
+					symbol[offsets[lengths[offset + i]]++] = i;
+		}
+	}
+
+	/**
+	 * Walks the blocks of a raw DEFLATE stream without producing its output.
+	 */
+	private static final class Scanner {
+		private final byte[] raw;
+		private long position;
+
+		private Scanner(byte[] raw) {
+			this.raw = raw;
+		}
+
+		private int bits(int count) throws ZipException {
+			if (position + count > 8L * raw.length)
+				throw new ZipException("Truncated DEFLATE stream");
+			int value = 0;
+			for (int i = 0; i < count; i++, position++)
+				value |= ((raw[(int) (position >>> 3)] >>> (position & 7)) & 1) << i;
+			return value;
+		}
+
+		private int decode(Huffman huffman) throws ZipException {
+			int code = 0;
+			int first = 0;
+			int index = 0;
+			for (int len = 1; len <= MAX_BITS; len++) {
+				code |= bits(1);
+				int count = huffman.count[len];
+				if (code - count < first)
+					return huffman.symbol[index + (code - first)];
+				index += count;
+				first = (first + count) << 1;
+				code <<= 1;
+			}
+			throw new ZipException("Invalid Huffman code in DEFLATE stream");
+		}
+
+		/**
+		 * Skips a stored block.
+		 *
+		 * @return the length of its data, which ends at {@link #position}.
+		 */
+		private int stored() throws ZipException {
+			position = (position + 7) & ~7L;
+			int length = bits(16);
+			if ((bits(16) ^ 0xffff) != length)
+				throw new ZipException("Invalid stored block length in DEFLATE stream");
+			if (position + 8L * length > 8L * raw.length)
+				throw new ZipException("Truncated DEFLATE stream");
+			position += 8L * length;
+			return length;
+		}
+
+		private void block(int type) throws ZipException {
+			switch (type) {
+			case 1:
+				codes(FIXED_LENGTHS, FIXED_DISTANCES);
+				break;
+			case 2:
+				dynamic();
+				break;
+			default:
+				throw new ZipException("Invalid block type in DEFLATE stream");
+			}
+		}
+
+		private void dynamic() throws ZipException {
+			int lengthCodes = bits(5) + 257;
+			int distanceCodes = bits(5) + 1;
+			int codeLengthCodes = bits(4) + 4;
+			int[] lengths = new int[320];
+			for (int i = 0; i < codeLengthCodes; i++)
+				lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+			Huffman codeLengths = new Huffman(lengths, 0, 19);
+
+			Arrays.fill(lengths, 0);
+			for (int i = 0; i < lengthCodes + distanceCodes;) {
+				int symbol = decode(codeLengths);
+				if (symbol < 16) {
+					lengths[i++] = symbol;
+					continue;
+				}
+				int previous = 0;
+				int repeat;
+				if (symbol == 16) {
+					if (i == 0)
+						throw new ZipException("Invalid code lengths in DEFLATE stream");
+					previous = lengths[i - 1];
+					repeat = 3 + bits(2);
+				} else if (symbol == 17)
+					repeat = 3 + bits(3);
+				else
+					repeat = 11 + bits(7);
+				if (i + repeat > lengthCodes + distanceCodes)
+					throw new ZipException("Invalid code lengths in DEFLATE stream");
+				while (repeat-- > 0)
+					lengths[i++] = previous;
+			}
+			codes(new Huffman(lengths, 0, lengthCodes), new Huffman(lengths, lengthCodes, distanceCodes));
+		}
+
+		private void codes(Huffman lengthCode, Huffman distanceCode) throws ZipException {
+			for (;;) {
+				int symbol = decode(lengthCode);
+				if (symbol < 256)
+					continue;
+				if (symbol == 256)
+					return;
+				symbol -= 257;
+				if (symbol >= LENGTH_EXTRA.length)
+					throw new ZipException("Invalid length symbol in DEFLATE stream");
+				bits(LENGTH_EXTRA[symbol]);
+				symbol = decode(distanceCode);
+				if (symbol >= DISTANCE_EXTRA.length)
+					throw new ZipException("Invalid distance symbol in DEFLATE stream");
+				bits(DISTANCE_EXTRA[symbol]);
+			}
+		}
+	}
+}
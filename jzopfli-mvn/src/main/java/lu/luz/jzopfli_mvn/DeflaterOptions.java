@@ -0,0 +1,78 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * Reads and copies {@link ZopfliDeflaterOptions}, which has setters only, by
+ * reflection on its fields.
+ */
+final class DeflaterOptions {
+	private DeflaterOptions() {
+	}
+
+	static int getNumIterations(ZopfliDeflaterOptions deflateOpts) {
+		return (Integer) get(deflateOpts, "numIterations");
+	}
+
+	static int getMasterBlockSize(ZopfliDeflaterOptions deflateOpts) {
+		return (Integer) get(deflateOpts, "masterBlockSize");
+	}
+
+	/**
+	 * @return a copy of {@code deflateOpts} running {@code numIterations}
+	 *         iterations.
+	 */
+	static ZopfliDeflaterOptions withNumIterations(ZopfliDeflaterOptions deflateOpts, int numIterations) {
+		ZopfliDeflaterOptions copy = copy(deflateOpts);
+		copy.setNumIterations(numIterations);
+		return copy;
+	}
+
+	static ZopfliDeflaterOptions copy(ZopfliDeflaterOptions deflateOpts) {
+		ZopfliDeflaterOptions copy = new ZopfliDeflaterOptions();
+		for (Class<?> c = ZopfliDeflaterOptions.class; c != Object.class; c = c.getSuperclass())
+			for (Field field : c.getDeclaredFields())
+				if (!Modifier.isStatic(field.getModifiers()))
+					try {
+						field.setAccessible(true);
+						field.set(copy, field.get(deflateOpts));
+					} catch (IllegalAccessException e) {
+						throw new IllegalStateException(e);
+					}
+		return copy;
+	}
+
+	private static Object get(ZopfliDeflaterOptions deflateOpts, String name) {
+		try {
+			Field field = ZopfliDeflaterOptions.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(deflateOpts);
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions.Strategy;
+
+/**
+ * Overrides some of the deflater options. Settings left unset keep the value
+ * of the options the variant is applied to.
+ */
+public class DeflaterVariant {
+	private Integer numIterations;
+	private Boolean blockSplitting;
+	private Boolean blockSplittingLast;
+	private Integer blockSplittingMax;
+	private Strategy strategy;
+
+	public Integer getNumIterations() {
+		return numIterations;
+	}
+
+	public void setNumIterations(Integer numIterations) {
+		this.numIterations = numIterations;
+	}
+
+	public Boolean getBlockSplitting() {
+		return blockSplitting;
+	}
+
+	public void setBlockSplitting(Boolean blockSplitting) {
+		this.blockSplitting = blockSplitting;
+	}
+
+	public Boolean getBlockSplittingLast() {
+		return blockSplittingLast;
+	}
+
+	public void setBlockSplittingLast(Boolean blockSplittingLast) {
+		this.blockSplittingLast = blockSplittingLast;
+	}
+
+	public Integer getBlockSplittingMax() {
+		return blockSplittingMax;
+	}
+
+	public void setBlockSplittingMax(Integer blockSplittingMax) {
+		this.blockSplittingMax = blockSplittingMax;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public void setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * @return a copy of {@code deflateOpts} with the settings of this variant.
+	 */
+	public ZopfliDeflaterOptions apply(ZopfliDeflaterOptions deflateOpts) {
+		ZopfliDeflaterOptions copy = DeflaterOptions.copy(deflateOpts);
+		if (numIterations != null)
+			copy.setNumIterations(numIterations);
+		if (blockSplitting != null)
+			copy.setBlocSplitting(blockSplitting);
+		if (blockSplittingLast != null)
+			copy.setBlockSplittingLast(blockSplittingLast);
+		if (blockSplittingMax != null)
+			copy.setBlockSplittingMax(blockSplittingMax);
+		if (strategy != null)
+			copy.setStrategy(strategy);
+		return copy;
+	}
+}
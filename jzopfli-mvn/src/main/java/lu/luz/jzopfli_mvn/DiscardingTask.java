@@ -0,0 +1,48 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A task whose result is closed if the task is cancelled while it runs, so
+ * that the temporary file of an output nobody reads is deleted.
+ */
+class DiscardingTask<T> extends FutureTask<T> {
+	DiscardingTask(Callable<T> callable) {
+		super(callable);
+	}
+
+	@Override
+	protected void set(T result) {
+		super.set(result);
+		if (isCancelled() && result instanceof Closeable)
+			try {
+				((Closeable) result).close();
+			} catch (IOException e) {
+				// the output is discarded either way
+			}
+	}
+}
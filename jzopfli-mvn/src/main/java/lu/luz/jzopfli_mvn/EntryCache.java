@@ -0,0 +1,274 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * On-disk cache of raw DEFLATE streams, keyed by a hash of the uncompressed
+ * content and of the options it was compressed with. The least recently used
+ * streams are evicted by {@link #trim()} once the cache exceeds its size.
+ */
+public final class EntryCache {
+	private static final String SUFFIX = ".deflate";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path directory;
+	private final long maxSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong hitBytes = new AtomicLong();
+
+	public EntryCache(Path directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes served from the cache.
+	 */
+	public long getHitBytes() {
+		return hitBytes.get();
+	}
+
+	/**
+	 * @return the cache key of {@code content} compressed with
+	 *         {@code deflateOpts}.
+	 */
+	public static String key(byte[] content, ZopfliDeflaterOptions deflateOpts) {
+		return key(content, deflateOpts, "");
+	}
+
+	/**
+	 * @param variant
+	 *            describes how the options are applied, when the output
+	 *            depends on more than the options.
+	 * @return the cache key of {@code content} compressed with
+	 *         {@code deflateOpts}.
+	 */
+	public static String key(byte[] content, ZopfliDeflaterOptions deflateOpts, String variant) {
+		MessageDigest digest = sha256();
+		digest.update(content);
+		digest.update((byte) 0);
+		digest.update((fingerprint(deflateOpts) + variant).getBytes(StandardCharsets.UTF_8));
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Describes the options that influence the compressed output.
+	 * {@link ZopfliDeflaterOptions} has no getters, so its fields are read
+	 * reflectively; the verbose flags are left out.
+	 */
+	static String fingerprint(ZopfliDeflaterOptions deflateOpts) {
+		List<Field> fields = new ArrayList<Field>();
+		for (Class<?> c = deflateOpts.getClass(); c != Object.class; c = c.getSuperclass())
+			fields.addAll(Arrays.asList(c.getDeclaredFields()));
+		Collections.sort(fields, new Comparator<Field>() {
+			@Override
+			public int compare(Field f1, Field f2) {
+				return f1.getName().compareTo(f2.getName());
+			}
+		});
+
+		StringBuilder result = new StringBuilder();
+		for (Field field : fields) {
+			if (Modifier.isStatic(field.getModifiers()) || field.getName().startsWith("verbose"))
+				continue;
+			try {
+				field.setAccessible(true);
+				result.append(field.getName()).append('=').append(field.get(deflateOpts)).append(';');
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Looks up a raw DEFLATE stream. A stream that does not inflate back to
+	 * {@code size} bytes with checksum {@code crc} is discarded.
+	 *
+	 * @return the raw DEFLATE stream, or {@code null} if it is not cached.
+	 */
+	public byte[] get(String key, long crc, long size) {
+		Path file = file(key);
+		byte[] raw;
+		try {
+			raw = Files.readAllBytes(file);
+		} catch (IOException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if (!matches(raw, crc, size)) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+		}
+		hits.incrementAndGet();
+		hitBytes.addAndGet(size);
+		return raw;
+	}
+
+	/**
+	 * Stores a raw DEFLATE stream. Failures are ignored, the cache being only
+	 * an optimization.
+	 */
+	public void put(String key, byte[] raw) {
+		Path file = file(key);
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = Files.createTempFile(file.getParent(), key, null);
+			try {
+				Files.write(temp, raw);
+				try {
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Deletes the least recently used streams until the cache fits in its
+	 * maximum size.
+	 */
+	public void trim() throws IOException {
+		if (!Files.isDirectory(directory))
+			return;
+		final List<Object[]> files = new ArrayList<Object[]>();
+		final long[] total = { 0 };
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (file.getFileName().toString().endsWith(SUFFIX)) {
+					files.add(new Object[] { file, attrs.lastModifiedTime(), attrs.size() });
+					total[0] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] f1, Object[] f2) {
+				return ((FileTime) f1[1]).compareTo((FileTime) f2[1]);
+			}
+		});
+		for (Object[] file : files) {
+			if (total[0] <= maxSize)
+				break;
+			Files.deleteIfExists((Path) file[0]);
+			total[0] -= (Long) file[2];
+		}
+	}
+
+	private Path file(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + SUFFIX);
+	}
+
+	private static boolean matches(byte[] raw, long crc, long size) {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(raw);
+			byte[] buffer = new byte[8192];
+			CRC32 actual = new CRC32();
+			long total = 0;
+			while (!inflater.finished()) {
+				int read = inflater.inflate(buffer);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					return false;
+				actual.update(buffer, 0, read);
+				total += read;
+			}
+			return total == size && actual.getValue() == crc;
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] result = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			result[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			result[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+}
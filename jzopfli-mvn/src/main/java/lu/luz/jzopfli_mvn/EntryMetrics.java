@@ -0,0 +1,179 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+/**
+ * What recompressing one entry cost and produced. Reported to the
+ * {@link EntryListener} of the archive once the entry is compressed.
+ */
+public final class EntryMetrics {
+	/** How the data written for an entry was produced. */
+	public enum Outcome {
+		/** Compressed with Zopfli. */
+		ZOPFLI,
+		/** Compressed with Zopfli by an earlier build, read from the cache. */
+		CACHED,
+		/** Compressed with Zopfli for an identical entry of the archive. */
+		DEDUPLICATED,
+		/** Compressed with {@link java.util.zip.Deflater} level 9 to fit in the time budget. */
+		DEFLATER,
+		/** Stored, because a rule said so or compressing did not reduce it. */
+		STORED,
+		/** Stored, because the pre-screen found it incompressible. */
+		SCREENED,
+		/** Its original data, copied as is. */
+		ORIGINAL,
+		/** The data of the same entry of the reference archive. */
+		REFERENCED
+	}
+
+	private final String archive;
+	private final String name;
+	private final long size;
+	private final long originalSize;
+	private long compressedSize;
+	private Outcome outcome;
+	private Outcome deflateOutcome = Outcome.DEDUPLICATED;
+	private boolean screened;
+	private long inflateNanos;
+	private long deflateNanos;
+	private long totalNanos;
+	private int iterations;
+
+	EntryMetrics(String archive, ZipReader.Entry entry) {
+		this.archive = archive;
+		this.name = entry.name;
+		this.size = entry.size;
+		this.originalSize = entry.compressedSize;
+	}
+
+	public String getArchive() {
+		return archive;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the uncompressed size.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the compressed size in the original archive.
+	 */
+	public long getOriginalSize() {
+		return originalSize;
+	}
+
+	/**
+	 * @return the compressed size written.
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * @return the bytes saved compared with the original archive.
+	 */
+	public long getGain() {
+		return originalSize - compressedSize;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * @return the time spent reading and inflating the original data, in
+	 *         nanoseconds.
+	 */
+	public long getInflateNanos() {
+		return inflateNanos;
+	}
+
+	/**
+	 * @return the time spent compressing, in nanoseconds; it may be spent
+	 *         although the original data is kept.
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos;
+	}
+
+	/**
+	 * @return the time spent on the entry, in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the Zopfli iterations run.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	void inflated(long nanos) {
+		inflateNanos += nanos;
+	}
+
+	void screened() {
+		screened = true;
+	}
+
+	/**
+	 * Adds compression time that did not produce the data written.
+	 */
+	void spent(long nanos) {
+		deflateNanos += nanos;
+	}
+
+	void deflated(Outcome outcome, long nanos, int iterations) {
+		deflateOutcome = outcome;
+		deflateNanos += nanos;
+		this.iterations += iterations;
+	}
+
+	/**
+	 * Records the data written.
+	 *
+	 * @param original
+	 *            {@code true} if the data is copied from an archive, with
+	 *            {@code referenced} set if it is the reference archive.
+	 */
+	void done(boolean original, boolean referenced, boolean stored, long compressedSize, long nanos) {
+		this.compressedSize = compressedSize;
+		this.totalNanos = nanos;
+		if (referenced)
+			outcome = Outcome.REFERENCED;
+		else if (original)
+			outcome = Outcome.ORIGINAL;
+		else if (stored)
+			outcome = screened ? Outcome.SCREENED : Outcome.STORED;
+		else
+			outcome = deflateOutcome;
+	}
+}
@@ -0,0 +1,157 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.regex.Pattern;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * Selects entries by path and uncompressed size, and tells how to compress
+ * them. Settings left unset fall back to the ones of the archive.
+ */
+public class EntryRule extends DeflaterVariant {
+	public enum Mode {
+		/** Compress with Zopfli. */
+		ZOPFLI,
+		/** Store without compression. */
+		STORE,
+		/** Keep the original data, without decompressing it. */
+		SKIP
+	}
+
+	private String[] includes;
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	private Mode mode = Mode.ZOPFLI;
+	private ZopfliDeflaterOptions deflaterOptions;
+	private Pattern[] patterns;
+
+	/**
+	 * @return the Ant-like patterns of the entry paths this rule applies to,
+	 *         or {@code null} for all entries.
+	 */
+	public String[] getIncludes() {
+		return includes;
+	}
+
+	public void setIncludes(String[] includes) {
+		this.includes = includes;
+		this.patterns = null;
+	}
+
+	public long getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * @return the options to compress the matching entries with, or
+	 *         {@code null} to use the ones of the archive.
+	 */
+	public ZopfliDeflaterOptions getDeflaterOptions() {
+		return deflaterOptions;
+	}
+
+	public void setDeflaterOptions(ZopfliDeflaterOptions deflaterOptions) {
+		this.deflaterOptions = deflaterOptions;
+	}
+
+	/**
+	 * @return {@code true} if this rule applies to an entry.
+	 */
+	public boolean matches(String name, long size) {
+		if (size < minSize || size > maxSize)
+			return false;
+		if (includes == null || includes.length == 0)
+			return true;
+		Pattern[] compiled = patterns;
+		if (compiled == null) {
+			compiled = new Pattern[includes.length];
+			for (int i = 0; i < includes.length; i++)
+				compiled[i] = compile(includes[i]);
+			patterns = compiled;
+		}
+		for (Pattern pattern : compiled)
+			if (pattern.matcher(name).matches())
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the first rule of {@code rules} that applies to an entry, or
+	 *         {@code null}.
+	 */
+	static EntryRule find(Iterable<EntryRule> rules, String name, long size) {
+		if (rules != null)
+			for (EntryRule rule : rules)
+				if (rule.matches(name, size))
+					return rule;
+		return null;
+	}
+
+	/**
+	 * Translates an Ant-like pattern, where {@code **} matches any number of
+	 * directories, {@code *} any part of a name and {@code ?} one character.
+	 */
+	static Pattern compile(String antPattern) {
+		String pattern = antPattern.trim().replace('\\', '/');
+		if (pattern.endsWith("/"))
+			pattern += "**";
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (pattern.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 2;
+			} else if (pattern.startsWith("**", i)) {
+				regex.append(".*");
+				i++;
+			} else if (c == '*')
+				regex.append("[^/]*");
+			else if (c == '?')
+				regex.append("[^/]");
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
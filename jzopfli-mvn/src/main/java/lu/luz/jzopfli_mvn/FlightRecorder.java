@@ -0,0 +1,138 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Custom JDK Flight Recorder events, defined through {@code jdk.jfr.EventFactory}
+ * by reflection, so that the plugin still runs on JVMs without
+ * {@code jdk.jfr}, where no event is recorded. An event costs a few
+ * reflective calls, and nothing while no recording enables it.
+ */
+final class FlightRecorder {
+	/** An entry compressed, with its archive, name, outcome and sizes. */
+	static final FlightRecorder ENTRY = new FlightRecorder("lu.luz.jzopfli.Entry", "Entry Recompressed",
+			new String[] { "archive", "name", "outcome", "size", "compressedSize", "iterations" },
+			new Class<?>[] { String.class, String.class, String.class, long.class, long.class, int.class });
+	/** An archive recompressed, with its number of entries and size. */
+	static final FlightRecorder ARCHIVE = new FlightRecorder("lu.luz.jzopfli.Archive", "Archive Recompressed",
+			new String[] { "archive", "entries", "size" },
+			new Class<?>[] { String.class, int.class, long.class });
+
+	private static final String CATEGORY = "JZopfli";
+
+	private final Object factory;
+	private final Method newEvent;
+	private final Method isEnabled;
+	private final Method begin;
+	private final Method set;
+	private final Method commit;
+
+	private FlightRecorder(String name, String label, String[] fields, Class<?>[] types) {
+		Object factory = null;
+		Method newEvent = null;
+		Method isEnabled = null;
+		Method begin = null;
+		Method set = null;
+		Method commit = null;
+		try {
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class);
+
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { CATEGORY }));
+			List<Object> descriptors = new ArrayList<Object>();
+			for (int i = 0; i < fields.length; i++)
+				descriptors.add(descriptor.newInstance(types[i], fields[i]));
+
+			factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, Collections.unmodifiableList(annotations),
+					Collections.unmodifiableList(descriptors));
+			newEvent = factoryClass.getMethod("newEvent");
+			isEnabled = eventClass.getMethod("isEnabled");
+			begin = eventClass.getMethod("begin");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			factory = null;
+		}
+		this.factory = factory;
+		this.newEvent = newEvent;
+		this.isEnabled = isEnabled;
+		this.begin = begin;
+		this.set = set;
+		this.commit = commit;
+	}
+
+	/**
+	 * Starts timing an event.
+	 *
+	 * @return the event, or {@code null} if it is not recorded.
+	 */
+	Object begin() {
+		if (factory == null)
+			return null;
+		try {
+			Object event = newEvent.invoke(factory);
+			if (!(Boolean) isEnabled.invoke(event))
+				return null;
+			begin.invoke(event);
+			return event;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Records an event started by {@link #begin()}.
+	 *
+	 * @param values
+	 *            the values of the fields, in their order.
+	 */
+	void commit(Object event, Object... values) {
+		if (event == null)
+			return;
+		try {
+			for (int i = 0; i < values.length; i++)
+				set.invoke(event, i, values[i]);
+			commit.invoke(event);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+		}
+	}
+
+	/**
+	 * @return {@code true} if events can be recorded on this JVM.
+	 */
+	boolean isAvailable() {
+		return factory != null;
+	}
+}
@@ -0,0 +1,229 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * Predicts what recompressing an archive would gain and cost, from a sample
+ * of its entries. The entries are grouped by type and size, a few entries of
+ * each group are compressed, and the gain and time per uncompressed byte of
+ * the sample are extrapolated to the whole group. The bounds are those of a
+ * 95% confidence interval of the ratio estimator.
+ */
+public final class GainEstimate {
+	private static final List<String> TEXT = Arrays.asList("xml", "properties", "txt", "html", "htm", "js", "css", "json", "mf", "sf", "sql",
+			"yml", "yaml", "java", "md", "svg", "csv", "tld", "xsd", "dtd", "jsp", "ftl", "vm");
+	private static final List<String> MEDIA = Arrays.asList("png", "jpg", "jpeg", "gif", "ico", "webp", "woff", "woff2", "ttf", "otf", "eot",
+			"mp3", "mp4", "ogg", "gz", "bz2", "xz", "7z", "pdf");
+	private static final long[] SIZES = { 4 * 1024, 64 * 1024, 1024 * 1024 };
+	private static final double Z = 1.96;
+
+	private int entries;
+	private int sampledEntries;
+	private long size;
+	private long sampledSize;
+	private double gain;
+	private double gainVariance;
+	private double nanos;
+	private double nanosVariance;
+
+	private GainEstimate() {
+	}
+
+	/**
+	 * Estimates what recompressing {@code archive} would gain and cost,
+	 * compressing its sampled entries one after the other.
+	 *
+	 * @param samples
+	 *            the number of entries compressed per group of entries of the
+	 *            same type and size.
+	 * @param seed
+	 *            the seed of the sampling, so that estimates can be repeated.
+	 */
+	public static GainEstimate estimate(Path archive, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts, int samples, long seed) throws IOException {
+		GainEstimate result = new GainEstimate();
+		Random random = new Random(seed);
+		try (ZipReader reader = new ZipReader(archive)) {
+			for (List<ZipReader.Entry> stratum : strata(reader.entries())) {
+				List<ZipReader.Entry> sample = new ArrayList<ZipReader.Entry>(stratum);
+				Collections.shuffle(sample, random);
+				sample = sample.subList(0, Math.min(Math.max(1, samples), sample.size()));
+				List<EntryMetrics> metrics = new ArrayList<EntryMetrics>();
+				for (ZipReader.Entry entry : sample)
+					metrics.add(ZopfliTools.measure(reader, entry, zipOpts, deflateOpts));
+				result.add(stratum, metrics);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Groups the entries with content by type and size.
+	 */
+	private static Iterable<List<ZipReader.Entry>> strata(List<ZipReader.Entry> entries) {
+		Map<String, List<ZipReader.Entry>> strata = new LinkedHashMap<String, List<ZipReader.Entry>>();
+		for (ZipReader.Entry entry : entries) {
+			if (entry.isDirectory() || entry.size <= 0)
+				continue;
+			int bucket = 0;
+			while (bucket < SIZES.length && entry.size >= SIZES[bucket])
+				bucket++;
+			String key = type(entry.name) + bucket;
+			List<ZipReader.Entry> stratum = strata.get(key);
+			if (stratum == null)
+				strata.put(key, stratum = new ArrayList<ZipReader.Entry>());
+			stratum.add(entry);
+		}
+		return strata.values();
+	}
+
+	private static String type(String name) {
+		if (ZopfliTools.isZip(name))
+			return "archive";
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+		if (extension.equals("class"))
+			return "class";
+		if (TEXT.contains(extension))
+			return "text";
+		if (MEDIA.contains(extension))
+			return "media";
+		return "other";
+	}
+
+	/**
+	 * Extrapolates the sample of a group of entries to the whole group.
+	 */
+	private void add(List<ZipReader.Entry> stratum, List<EntryMetrics> sample) {
+		int n = sample.size();
+		int count = stratum.size();
+		long stratumSize = 0;
+		for (ZipReader.Entry entry : stratum)
+			stratumSize += entry.size;
+		long sampleSize = 0;
+		long sampleGain = 0;
+		long sampleNanos = 0;
+		for (EntryMetrics metrics : sample) {
+			sampleSize += metrics.getSize();
+			sampleGain += metrics.getGain();
+			sampleNanos += metrics.getTotalNanos();
+		}
+		double gainRatio = (double) sampleGain / sampleSize;
+		double nanosRatio = (double) sampleNanos / sampleSize;
+		double stratumGain = gainRatio * stratumSize;
+		double stratumNanos = nanosRatio * stratumSize;
+
+		entries += count;
+		sampledEntries += n;
+		size += stratumSize;
+		sampledSize += sampleSize;
+		gain += stratumGain;
+		nanos += stratumNanos;
+		if (n == count)
+			return;
+		if (n < 2) {
+			gainVariance += stratumGain * stratumGain;
+			nanosVariance += stratumNanos * stratumNanos;
+			return;
+		}
+		double gainResiduals = 0;
+		double nanosResiduals = 0;
+		for (EntryMetrics metrics : sample) {
+			double g = metrics.getGain() - gainRatio * metrics.getSize();
+			double t = metrics.getTotalNanos() - nanosRatio * metrics.getSize();
+			gainResiduals += g * g;
+			nanosResiduals += t * t;
+		}
+		double factor = (double) count * count * (1 - (double) n / count) / n / (n - 1);
+		gainVariance += factor * gainResiduals;
+		nanosVariance += factor * nanosResiduals;
+	}
+
+	/**
+	 * @return the number of entries with content.
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the number of entries compressed.
+	 */
+	public int getSampledEntries() {
+		return sampledEntries;
+	}
+
+	/**
+	 * @return the uncompressed size of the entries.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the uncompressed size of the entries compressed.
+	 */
+	public long getSampledSize() {
+		return sampledSize;
+	}
+
+	/**
+	 * @return the estimated bytes saved.
+	 */
+	public long getGain() {
+		return Math.round(gain);
+	}
+
+	/**
+	 * @return the half width of the confidence interval of
+	 *         {@link #getGain()}.
+	 */
+	public long getGainError() {
+		return Math.round(Z * Math.sqrt(gainVariance));
+	}
+
+	/**
+	 * @return the estimated time of a serial recompression, in nanoseconds.
+	 */
+	public long getNanos() {
+		return Math.round(nanos);
+	}
+
+	/**
+	 * @return the half width of the confidence interval of
+	 *         {@link #getNanos()}.
+	 */
+	public long getNanosError() {
+		return Math.round(Z * Math.sqrt(nanosVariance));
+	}
+}
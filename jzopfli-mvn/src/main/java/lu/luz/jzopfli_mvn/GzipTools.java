@@ -0,0 +1,363 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * Recompresses gzip files, such as {@code tar.gz} distributions, member by
+ * member. The data of a member is inflated and compressed one master block
+ * at a time, the blocks being joined into one DEFLATE stream, so the memory
+ * used depends on the master block size and not on the size of the file.
+ */
+public final class GzipTools {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int ID1 = 0x1f;
+	private static final int ID2 = 0x8b;
+	private static final int DEFLATED = 8;
+	private static final int FTEXT = 1;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	/** Extra flags of a member compressed with the slowest algorithm. */
+	private static final int XFL_MAXIMUM = 2;
+
+	private GzipTools() {
+	}
+
+	/**
+	 * @return {@code true} if {@code file} starts like a gzip file.
+	 */
+	public static boolean isGzip(Path file) {
+		try (InputStream is = Files.newInputStream(file)) {
+			return is.read() == ID1 && is.read() == ID2 && is.read() == DEFLATED;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code is}, which must support
+	 *         {@link InputStream#mark(int)}, continues like a gzip file. Its
+	 *         position is not changed.
+	 */
+	public static boolean isGzip(InputStream is) throws IOException {
+		is.mark(3);
+		try {
+			return is.read() == ID1 && is.read() == ID2 && is.read() == DEFLATED;
+		} finally {
+			is.reset();
+		}
+	}
+
+	public static void recompress(Path input, WritableByteChannel output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException {
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(input), BUFFER_SIZE)) {
+			OutputStream os = Channels.newOutputStream(output);
+			recompress(is, os, zipOpts, deflateOpts);
+			os.flush();
+		}
+	}
+
+	/**
+	 * Recompresses every member of the gzip file read from {@code is} into
+	 * {@code os}. The name and the modification time of a member are kept
+	 * if {@link ZipOptions#isKeepGzipName()} and
+	 * {@link ZipOptions#isKeepGzipTime()} are set, its extra field and its
+	 * comment if {@link ZipOptions#isKeepExtra()} and
+	 * {@link ZipOptions#isKeepComment()} are set. If
+	 * {@link ZipOptions#isNeverWorse()} is set, a member that Zopfli cannot
+	 * make smaller is copied unchanged; members are buffered for that, in
+	 * memory up to {@link ZipOptions#getSpillThreshold()} bytes. Data
+	 * following the last member is copied unchanged. If
+	 * {@link ZipOptions#getExecutor()} is set, the master blocks of a member
+	 * are compressed concurrently.
+	 */
+	public static void recompress(InputStream is, OutputStream os, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(is, BUFFER_SIZE);
+		try (SpillBuffer original = new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory());
+				SpillBuffer recompressed = new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory())) {
+			for (int members = 0;; members++) {
+				byte[] magic = new byte[3];
+				int read = readUpTo(in, magic);
+				if (read > 0)
+					in.unread(magic, 0, read);
+				if (read < magic.length || (magic[0] & 0xff) != ID1 || (magic[1] & 0xff) != ID2 || magic[2] != DEFLATED) {
+					if (members == 0)
+						throw new ZipException("Not in GZIP format");
+					copy(in, os);
+					return;
+				}
+				original.reset();
+				recompressed.reset();
+				recompressMember(in, original, recompressed, zipOpts, deflateOpts);
+				if (zipOpts.isNeverWorse() && original.size() <= recompressed.size())
+					original.writeTo(os);
+				else
+					recompressed.writeTo(os);
+			}
+		}
+	}
+
+	private static void recompressMember(PushbackInputStream in, SpillBuffer original, SpillBuffer recompressed, ZipOptions zipOpts,
+			ZopfliDeflaterOptions deflateOpts) throws IOException {
+		InputStream tee = new TeeInputStream(in, original);
+		byte[] fixed = readFully(tee, 10);
+		int flags = fixed[3] & 0xff;
+		byte[] extra = null;
+		byte[] name = null;
+		byte[] comment = null;
+		if ((flags & FEXTRA) != 0) {
+			byte[] length = readFully(tee, 2);
+			extra = readFully(tee, (length[0] & 0xff) | (length[1] & 0xff) << 8);
+		}
+		if ((flags & FNAME) != 0)
+			name = readZeroTerminated(tee);
+		if ((flags & FCOMMENT) != 0)
+			comment = readZeroTerminated(tee);
+		if ((flags & FHCRC) != 0)
+			readFully(tee, 2);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		extra = zipOpts.isKeepExtra() ? extra : null;
+		name = zipOpts.isKeepGzipName() ? name : null;
+		comment = zipOpts.isKeepComment() ? comment : null;
+		int outFlags = (flags & (FTEXT | FHCRC)) | (extra == null ? 0 : FEXTRA) | (name == null ? 0 : FNAME) | (comment == null ? 0 : FCOMMENT);
+		header.write(new byte[] { (byte) ID1, (byte) ID2, DEFLATED, (byte) outFlags });
+		if (zipOpts.isKeepGzipTime())
+			header.write(fixed, 4, 4);
+		else
+			header.write(new byte[4]);
+		header.write(XFL_MAXIMUM);
+		header.write(fixed[9]);
+		if (extra != null) {
+			header.write(extra.length & 0xff);
+			header.write(extra.length >>> 8);
+			header.write(extra);
+		}
+		if (name != null)
+			header.write(name);
+		if (comment != null)
+			header.write(comment);
+		if ((outFlags & FHCRC) != 0) {
+			CRC32 crc = new CRC32();
+			crc.update(header.toByteArray());
+			header.write((int) crc.getValue() & 0xff);
+			header.write((int) (crc.getValue() >>> 8) & 0xff);
+		}
+		header.writeTo(recompressed);
+
+		CRC32 crc = new CRC32();
+		long size = deflate(in, original, recompressed, crc, zipOpts, deflateOpts);
+
+		byte[] trailer = readFully(tee, 8);
+		long expectedCrc = uint32(trailer, 0);
+		long expectedSize = uint32(trailer, 4);
+		if (crc.getValue() != expectedCrc || (size & 0xFFFFFFFFL) != expectedSize)
+			throw new ZipException("Corrupt GZIP trailer");
+		recompressed.write(trailer);
+	}
+
+	/**
+	 * Inflates the DEFLATE stream of a member from {@code in}, copying the
+	 * bytes it consumes to {@code original}, and compresses its data into
+	 * {@code recompressed} one master block at a time. At most one block per
+	 * thread of the executor is held at a time.
+	 *
+	 * @return the uncompressed size of the member.
+	 */
+	private static long deflate(PushbackInputStream in, SpillBuffer original, SpillBuffer recompressed, CRC32 crc, ZipOptions zipOpts,
+			final ZopfliDeflaterOptions deflateOpts) throws IOException {
+		int masterBlockSize = DeflaterOptions.getMasterBlockSize(deflateOpts);
+		int blockSize = masterBlockSize > 0 ? masterBlockSize : zipOpts.getSpillThreshold();
+		Executor executor = zipOpts.getExecutor();
+		int window = executor == null ? 1 : ZopfliTools.parallelism(executor);
+		DeflateJoiner joiner = new DeflateJoiner(0);
+		Deque<FutureTask<byte[]>> pending = new ArrayDeque<>();
+		Inflater inflater = new Inflater(true);
+		long start = System.nanoTime();
+		long size = 0;
+		int blocks = 0;
+		try {
+			byte[] input = new byte[BUFFER_SIZE];
+			int inputLength = 0;
+			byte[] block = new byte[blockSize];
+			int count = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					original.write(input, 0, inputLength);
+					inputLength = in.read(input);
+					if (inputLength < 0)
+						throw new EOFException("Unexpected end of GZIP member");
+					inflater.setInput(input, 0, inputLength);
+				} else if (inflater.needsDictionary())
+					throw new ZipException("Unsupported GZIP member with a dictionary");
+				int inflated = inflater.inflate(block, count, block.length - count);
+				crc.update(block, count, inflated);
+				count += inflated;
+				size += inflated;
+				if (count == block.length) {
+					pending.add(submit(executor, block, deflateOpts));
+					blocks++;
+					block = new byte[blockSize];
+					count = 0;
+					if (pending.size() >= window)
+						append(joiner, pending.remove(), false, recompressed);
+				}
+			}
+			int remaining = inflater.getRemaining();
+			original.write(input, 0, inputLength - remaining);
+			in.unread(input, inputLength - remaining, remaining);
+			if (count > 0 || blocks == 0) {
+				pending.add(submit(executor, Arrays.copyOf(block, count), deflateOpts));
+				blocks++;
+			}
+			while (!pending.isEmpty())
+				append(joiner, pending.remove(), pending.isEmpty(), recompressed);
+			recompressed.write(joiner.toByteArray());
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid GZIP data: " + e.getMessage());
+		} finally {
+			inflater.end();
+			for (FutureTask<byte[]> task : pending)
+				task.cancel(true);
+		}
+		if (zipOpts.getStatistics() != null)
+			zipOpts.getStatistics().deflated(size, System.nanoTime() - start, DeflaterOptions.getNumIterations(deflateOpts) * blocks);
+		return size;
+	}
+
+	private static FutureTask<byte[]> submit(Executor executor, final byte[] block, final ZopfliDeflaterOptions deflateOpts) {
+		FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return ZopfliTools.deflate(block, deflateOpts);
+			}
+		});
+		if (executor != null)
+			executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Appends a compressed block, compressing it on the calling thread if no
+	 * thread has taken it yet.
+	 */
+	private static void append(DeflateJoiner joiner, FutureTask<byte[]> block, boolean last, OutputStream os) throws IOException {
+		block.run();
+		joiner.append(ZopfliTools.get(block), last);
+		if (!last)
+			joiner.drainTo(os);
+	}
+
+	private static byte[] readZeroTerminated(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int b;
+		do {
+			b = is.read();
+			if (b < 0)
+				throw new EOFException("Unexpected end of GZIP header");
+			bos.write(b);
+		} while (b != 0);
+		return bos.toByteArray();
+	}
+
+	private static byte[] readFully(InputStream is, int length) throws IOException {
+		byte[] result = new byte[length];
+		if (readUpTo(is, result) < length)
+			throw new EOFException("Unexpected end of GZIP member");
+		return result;
+	}
+
+	private static int readUpTo(InputStream is, byte[] b) throws IOException {
+		int count = 0;
+		while (count < b.length) {
+			int read = is.read(b, count, b.length - count);
+			if (read < 0)
+				break;
+			count += read;
+		}
+		return count;
+	}
+
+	private static long uint32(byte[] b, int offset) {
+		return (b[offset] & 0xffL) | (b[offset + 1] & 0xffL) << 8 | (b[offset + 2] & 0xffL) << 16 | (b[offset + 3] & 0xffL) << 24;
+	}
+
+	private static void copy(InputStream is, OutputStream os) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = is.read(buffer)) >= 0)
+			os.write(buffer, 0, read);
+	}
+
+	/**
+	 * Copies the bytes read through it to an output stream.
+	 */
+	private static final class TeeInputStream extends InputStream {
+		private final InputStream in;
+		private final OutputStream copy;
+
+		TeeInputStream(InputStream in, OutputStream copy) {
+			this.in = in;
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0)
+				copy.write(b, off, read);
+			return read;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.List;
+
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Maven Jzopfli Plugin, processing the artifacts of all the projects of the
+ * reactor at once. Their entries are compressed on one pool, the largest
+ * first, so that the pool stays busy until the last entry. The main and
+ * attached artifacts of each project are selected like by the
+ * {@code jzopfli} goal.
+ * <p>
+ * This is an aggregator goal: it runs once, on the top-level project, and is
+ * meant to be invoked from the command line after the lifecycle phase that
+ * packages the artifacts, before the one that installs or deploys them, for
+ * example {@code mvn package jzopfli:aggregate install}. It is not bound to
+ * a phase: bound in a POM, a project installed before the last one of the
+ * reactor is packaged would keep its original archives. The later phases
+ * run the packaging plugins again, which must leave the recompressed
+ * archives in place, as the jar plugin does unless {@code forceCreation} is
+ * set.
+ */
+@Mojo(name = "aggregate", aggregator = true)
+public class JzopfliAggregateMojo extends JzopfliMojo {
+
+	/**
+	 * The projects of the reactor.
+	 */
+	@Parameter(defaultValue = "${reactorProjects}", readonly = true, required = true)
+	private List<MavenProject> reactorProjects;
+
+	@Override
+	List<MavenProject> getProjects() {
+		return reactorProjects;
+	}
+
+	@Override
+	boolean isLargestFirst() {
+		return true;
+	}
+}
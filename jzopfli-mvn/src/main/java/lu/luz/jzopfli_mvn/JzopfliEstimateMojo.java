@@ -0,0 +1,85 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.util.List;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Maven Jzopfli Plugin, estimating what the {@code jzopfli} goal would gain
+ * and cost on the same archives, without writing anything. A sample of the
+ * entries of each archive, taken by type and size, is compressed with the
+ * configured options and extrapolated to the whole archive.
+ */
+@Mojo(name = "estimate", defaultPhase = LifecyclePhase.PACKAGE)
+public class JzopfliEstimateMojo extends JzopfliMojo {
+
+	/**
+	 * ESTIMATE: Number of entries compressed per group of entries of the
+	 * same type and size.
+	 */
+	@Parameter(property = "jzopfli.estimate.samples", defaultValue = "5")
+	private int samples;
+
+	/**
+	 * ESTIMATE: Seed of the sampling.
+	 */
+	@Parameter(property = "jzopfli.estimate.seed", defaultValue = "0")
+	private long seed;
+
+	@Override
+	void process(final List<File> archives) throws MojoExecutionException {
+		ZopfliDeflaterOptions deflateOpts = newDeflaterOptions(null);
+		ZipOptions zipOpts = newZipOptions();
+		long gain = 0;
+		long nanos = 0;
+		double gainVariance = 0;
+		double nanosVariance = 0;
+		for (File file : archives) {
+			if (GzipTools.isGzip(file.toPath())) {
+				getLog().info(getMessage("unsupported", file));
+				continue;
+			}
+			GainEstimate estimate;
+			try {
+				estimate = GainEstimate.estimate(file.toPath(), zipOpts, deflateOpts, samples, seed);
+			} catch (Exception e) {
+				throw new MojoExecutionException(getMessage("failure", e.getMessage()), e);
+			}
+			getLog().info(getMessage("estimate", file, estimate.getGain(), estimate.getGainError(), estimate.getNanos() / 1e9,
+					estimate.getNanosError() / 1e9, estimate.getSampledEntries(), estimate.getEntries()));
+			gain += estimate.getGain();
+			nanos += estimate.getNanos();
+			gainVariance += (double) estimate.getGainError() * estimate.getGainError();
+			nanosVariance += (double) estimate.getNanosError() * estimate.getNanosError();
+		}
+		getLog().info(getMessage("estimateTotal", gain, Math.round(Math.sqrt(gainVariance)), nanos / 1e9, Math.sqrt(nanosVariance) / 1e9,
+				archives.size()));
+	}
+}
@@ -0,0 +1,230 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions.Strategy;
+
+/**
+ * Recompresses an archive or a gzip file from the command line, outside
+ * Maven. The input and the output may be files, or {@code -} for the
+ * standard streams. Like the Maven goal, the recompressed data is verified
+ * against the input before it is written to the output, unless
+ * {@code --no-verify} is given; both are then kept in temporary files.
+ */
+public final class JzopfliMain {
+	private static final String USAGE = "Usage: java " + JzopfliMain.class.getName() + " [options] <input|-> <output|->\n"
+			+ "  --iterations <n>        Zopfli iterations per block (15)\n"
+			+ "  --convergence <ratio>   stop iterating below this gain (0, disabled)\n"
+			+ "  --block-splitting-last  choose the split points after compressing\n"
+			+ "  --block-splitting-max <n> maximum number of blocks (15)\n"
+			+ "  --strategy <name>       ZOPFLI_DYNAMIC_TREE, ZOPFLI_FIXED_TREE or ZOPFLI_STORE\n"
+			+ "  --threads <n>           threads deflating entries concurrently (1)\n"
+			+ "  --nested-depth <n>      levels of nested archives recompressed (0)\n"
+			+ "  --keep-directories      keep directory entries\n"
+			+ "  --keep-extra            keep the extra fields of the entries\n"
+			+ "  --keep-comment          keep the comments of the entries\n"
+			+ "  --keep-nested-zips      keep nested archives compressed\n"
+			+ "  --keep-gzip-name        keep the file name of gzip members\n"
+			+ "  --keep-gzip-time        keep the modification time of gzip members\n"
+			+ "  --allow-worse           recompress entries Zopfli cannot make smaller\n"
+			+ "  --spill-threshold <n>   bytes buffered in memory before spilling to disk (16777216)\n"
+			+ "  --temp-directory <dir>  directory of the spilled data\n"
+			+ "  --no-verify             stream the output without verifying it";
+
+	private JzopfliMain() {
+	}
+
+	public static void main(String[] args) {
+		System.exit(run(args, System.err));
+	}
+
+	/**
+	 * @return the exit status: 0 on success, 1 if recompressing fails and 2
+	 *         if the arguments are invalid.
+	 */
+	static int run(String[] args, PrintStream err) {
+		ZipOptions zipOpts = new ZipOptions();
+		zipOpts.setNeverWorse(true);
+		ZopfliDeflaterOptions deflateOpts = new ZopfliDeflaterOptions();
+		int threads = 1;
+		boolean verify = true;
+		String input = null;
+		String output = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--iterations"))
+					deflateOpts.setNumIterations(Integer.parseInt(value(args, ++i)));
+				else if (arg.equals("--convergence"))
+					zipOpts.setConvergence(Double.parseDouble(value(args, ++i)));
+				else if (arg.equals("--block-splitting-last"))
+					deflateOpts.setBlockSplittingLast(true);
+				else if (arg.equals("--block-splitting-max"))
+					deflateOpts.setBlockSplittingMax(Integer.parseInt(value(args, ++i)));
+				else if (arg.equals("--strategy"))
+					deflateOpts.setStrategy(Strategy.valueOf(value(args, ++i)));
+				else if (arg.equals("--threads"))
+					threads = Integer.parseInt(value(args, ++i));
+				else if (arg.equals("--nested-depth"))
+					zipOpts.setNestedDepth(Integer.parseInt(value(args, ++i)));
+				else if (arg.equals("--keep-directories"))
+					zipOpts.setKeepDirectories(true);
+				else if (arg.equals("--keep-extra"))
+					zipOpts.setKeepExtra(true);
+				else if (arg.equals("--keep-comment"))
+					zipOpts.setKeepComment(true);
+				else if (arg.equals("--keep-nested-zips"))
+					zipOpts.setKeepNestedZips(true);
+				else if (arg.equals("--keep-gzip-name"))
+					zipOpts.setKeepGzipName(true);
+				else if (arg.equals("--keep-gzip-time"))
+					zipOpts.setKeepGzipTime(true);
+				else if (arg.equals("--allow-worse"))
+					zipOpts.setNeverWorse(false);
+				else if (arg.equals("--spill-threshold"))
+					zipOpts.setSpillThreshold(Integer.parseInt(value(args, ++i)));
+				else if (arg.equals("--temp-directory"))
+					zipOpts.setTempDirectory(Paths.get(value(args, ++i)));
+				else if (arg.equals("--no-verify"))
+					verify = false;
+				else if (arg.startsWith("--"))
+					throw new IllegalArgumentException("Unknown option " + arg);
+				else if (input == null)
+					input = arg;
+				else if (output == null)
+					output = arg;
+				else
+					throw new IllegalArgumentException("Unexpected argument " + arg);
+			}
+			if (output == null)
+				throw new IllegalArgumentException("Missing " + (input == null ? "input" : "output"));
+			if (output.equals(input) && !input.equals("-"))
+				throw new IllegalArgumentException("The output must differ from the input");
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println(USAGE);
+			return 2;
+		}
+
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		zipOpts.setExecutor(executor);
+		try {
+			if (verify)
+				recompressVerified(input, output, zipOpts, deflateOpts);
+			else
+				recompress(input, output, zipOpts, deflateOpts);
+			return 0;
+		} catch (IOException | RuntimeException e) {
+			err.println("Failed to recompress " + input + ": " + e);
+			return 1;
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads a file input through {@link ZipReader} directly; only the
+	 * standard input is buffered.
+	 */
+	private static void recompress(String input, String output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException {
+		try (WritableByteChannel out = output.equals("-") ? Channels.newChannel(System.out)
+				: FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (!input.equals("-"))
+				recompress(Paths.get(input), out, zipOpts, deflateOpts);
+			else {
+				InputStream in = new BufferedInputStream(System.in);
+				if (GzipTools.isGzip(in))
+					GzipTools.recompress(in, Channels.newOutputStream(out), zipOpts, deflateOpts);
+				else
+					ZopfliTools.recompress(Channels.newChannel(in), out, zipOpts, deflateOpts);
+			}
+		}
+	}
+
+	/**
+	 * Recompresses into a temporary file, verifies it with
+	 * {@link ArchiveVerifier} and only then moves it to the output. The
+	 * standard input is first copied to a temporary file too.
+	 */
+	private static void recompressVerified(String input, String output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException {
+		Path source = input.equals("-") ? createTempFile(zipOpts) : Paths.get(input);
+		Path target = null;
+		try {
+			if (input.equals("-"))
+				Files.copy(System.in, source, StandardCopyOption.REPLACE_EXISTING);
+			target = createTempFile(zipOpts);
+			try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+				recompress(source, out, zipOpts, deflateOpts);
+			}
+			ArchiveVerifier.verify(source, target, zipOpts);
+			if (output.equals("-")) {
+				Files.copy(target, System.out);
+				System.out.flush();
+			} else
+				Files.move(target, Paths.get(output), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (target != null)
+				Files.deleteIfExists(target);
+			if (input.equals("-"))
+				Files.deleteIfExists(source);
+		}
+	}
+
+	/**
+	 * Recompresses a gzip file with {@link GzipTools}, any other file with
+	 * {@link ZopfliTools}.
+	 */
+	private static void recompress(Path input, WritableByteChannel out, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException {
+		if (GzipTools.isGzip(input))
+			GzipTools.recompress(input, out, zipOpts, deflateOpts);
+		else
+			ZopfliTools.recompress(input, out, zipOpts, deflateOpts);
+	}
+
+	private static Path createTempFile(ZipOptions zipOpts) throws IOException {
+		Path directory = zipOpts.getTempDirectory();
+		return directory == null ? Files.createTempFile("jzopfli", ".tmp") : Files.createTempFile(directory, "jzopfli", ".tmp");
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length)
+			throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+		return args[i];
+	}
+}
@@ -24,25 +24,46 @@ package lu.luz.jzopfli_mvn;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipInputStream;
 
 import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
 import lu.luz.jzopfli_stream.ZopfliDeflaterOptions.Strategy;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
@@ -70,6 +91,14 @@ public class JzopfliMojo extends AbstractMojo {
 	 */
 	@Parameter(property = "jzopfli.deflate.numIterations", defaultValue="15")
 	int numIterations;
+	/**
+	 * DEFLATE: If above 0, an entry is compressed with 1, 2, 4... iterations
+	 * until doubling them improves its size by less than this ratio, and
+	 * {@link #numIterations} is only a maximum. Set it to 0 to always run
+	 * {@link #numIterations} iterations.
+	 */
+	@Parameter(property = "jzopfli.deflate.convergence", defaultValue="0")
+	double convergence;
 	/**
 	 * DEFLATE: If true, splits the data in multiple deflate blocks with optimal choice
 	 * for the block boundaries. Block splitting gives better compression.
@@ -105,7 +134,9 @@ public class JzopfliMojo extends AbstractMojo {
 	 * block splitting, will be executed independently on each huge block.
 	 * Dividing into huge blocks hurts compression, but not much relative to the
 	 * size. Set this to, for example, 20MB (20000000). Set it to 0 to disable
-	 * master blocks.
+	 * master blocks. The master blocks of an entry are compressed as
+	 * independent DEFLATE streams joined into one, concurrently with more
+	 * than one {@link #threads thread}.
 	 */
 	@Parameter(property = "jzopfli.deflate.masterBlockSize", defaultValue="20000000")
 	int masterBlockSize;
@@ -116,6 +147,28 @@ public class JzopfliMojo extends AbstractMojo {
 	 */
 	@Parameter(property = "jzopfli.deflate.windowSize", defaultValue="32768")
 	int windowSize;
+	/**
+	 * DEFLATE: Variants of the options above, each one tried on every entry
+	 * in addition to the options themselves, concurrently on the threads of
+	 * the archive; the smallest output is kept. A variant may set
+	 * <code>numIterations</code>, <code>blockSplitting</code>,
+	 * <code>blockSplittingLast</code>, <code>blockSplittingMax</code> and
+	 * <code>strategy</code>, applied over the options of the matching rule.
+	 * For example:
+	 *
+	 * <pre>
+	 * &lt;variants&gt;
+	 *   &lt;variant&gt;
+	 *     &lt;blockSplittingLast&gt;true&lt;/blockSplittingLast&gt;
+	 *   &lt;/variant&gt;
+	 *   &lt;variant&gt;
+	 *     &lt;blockSplittingMax&gt;0&lt;/blockSplittingMax&gt;
+	 *   &lt;/variant&gt;
+	 * &lt;/variants&gt;
+	 * </pre>
+	 */
+	@Parameter
+	DeflaterVariant[] variants;
 
 	//ZIP//////////////////////////////////////////////////
 
@@ -139,6 +192,129 @@ public class JzopfliMojo extends AbstractMojo {
 	 */
 	@Parameter(property = "jzopfli.zip.keepNestedZips", defaultValue="false")
 	boolean keepNestedZips;
+	/**
+	 * ZIP: Number of levels of nested archives optimized recursively, as in
+	 * an EAR holding WARs holding JARs. At each level, the nested archive is
+	 * both rewritten with stored entries in a compressed entry, and
+	 * recompressed in a stored entry, and the smaller one is kept. Set it to
+	 * 0 to only store the entries of nested archives, one level deep.
+	 */
+	@Parameter(property = "jzopfli.zip.nestedDepth", defaultValue="0")
+	int nestedDepth;
+	/**
+	 * ZIP: If true, an entry that Zopfli cannot make smaller keeps its original
+	 * compressed data, so no entry grows.
+	 */
+	@Parameter(property = "jzopfli.zip.neverWorse", defaultValue="true")
+	boolean neverWorse;
+	/**
+	 * ZIP: An entry is stored without running Zopfli if a fast deflate trial
+	 * on a sample of it gives a compressed size above this ratio of its size.
+	 * Set it to 0 to disable this pre-screen.
+	 */
+	@Parameter(property = "jzopfli.zip.screenRatio", defaultValue="0.98")
+	double screenRatio;
+	/**
+	 * ZIP: Number of bytes of an entry sampled by the pre-screen.
+	 */
+	@Parameter(property = "jzopfli.zip.screenSampleSize", defaultValue="65536")
+	int screenSampleSize;
+	/**
+	 * ZIP: Number of threads deflating the entries of an archive concurrently.
+	 * Set it to 0 to use one thread per available processor. The output does
+	 * not depend on this value: entries larger than {@link #masterBlockSize}
+	 * are split into the same master blocks with one thread or many.
+	 */
+	@Parameter(property = "jzopfli.zip.threads", defaultValue="1")
+	int threads;
+	/**
+	 * ZIP: Maximum number of bytes of heap used by the entries being
+	 * recompressed, shared by all archives processed concurrently. Set it to
+	 * 0 to use half of the maximum heap.
+	 */
+	@Parameter(property = "jzopfli.zip.memoryBudget", defaultValue="0")
+	long memoryBudget;
+	/**
+	 * ZIP: Number of bytes of an entry, of its compressed data, of a nested
+	 * archive or of one of its entries, held in memory while it is
+	 * rewritten. Larger ones are buffered in a temporary file of the build
+	 * directory, and larger entries are compressed from it one
+	 * {@link #masterBlockSize master block} at a time, so the memory used
+	 * depends on the number of threads and the master block size. Such
+	 * entries are neither pre-screened nor cached.
+	 */
+	@Parameter(property = "jzopfli.zip.spillThreshold", defaultValue="16777216")
+	int spillThreshold;
+	/**
+	 * ZIP: Maximum number of seconds spent recompressing, shared by all
+	 * archives. When the entries left to compress would not fit in the
+	 * remaining time on the {@link #threads}, the next entries are compressed
+	 * with fewer iterations, then with a standard deflater, and finally keep
+	 * their original data. The largest entries are compressed first. Set it
+	 * to 0 for no limit.
+	 */
+	@Parameter(property = "jzopfli.zip.timeBudget", defaultValue="0")
+	long timeBudget;
+
+	/**
+	 * ZIP: Rules overriding how entries are compressed, by Ant-like path
+	 * patterns and uncompressed size range. The first matching rule applies.
+	 * A rule may set <code>numIterations</code>, <code>blockSplitting</code>,
+	 * <code>blockSplittingLast</code>, <code>blockSplittingMax</code> and
+	 * <code>strategy</code>, or a <code>mode</code> of <code>STORE</code> or
+	 * <code>SKIP</code> to keep the original data. For example:
+	 *
+	 * <pre>
+	 * &lt;rules&gt;
+	 *   &lt;rule&gt;
+	 *     &lt;minSize&gt;10000000&lt;/minSize&gt;
+	 *     &lt;numIterations&gt;1&lt;/numIterations&gt;
+	 *   &lt;/rule&gt;
+	 *   &lt;rule&gt;
+	 *     &lt;includes&gt;&lt;include&gt;**&#47;*.class&lt;/include&gt;&lt;/includes&gt;
+	 *     &lt;numIterations&gt;50&lt;/numIterations&gt;
+	 *   &lt;/rule&gt;
+	 * &lt;/rules&gt;
+	 * </pre>
+	 */
+	@Parameter
+	EntryRule[] rules;
+
+	//GZIP/////////////////////////////////////////////////
+	/**
+	 * GZIP: If true, keeps the original file name stored in the header of
+	 * the members of gzip files. The extra field and the comment of a member
+	 * are kept with <code>keepExtra</code> and <code>keepComment</code>.
+	 */
+	@Parameter(property = "jzopfli.gzip.keepName", defaultValue="true")
+	boolean keepGzipName;
+	/**
+	 * GZIP: If true, keeps the modification time stored in the header of the
+	 * members of gzip files.
+	 */
+	@Parameter(property = "jzopfli.gzip.keepTime", defaultValue="true")
+	boolean keepGzipTime;
+
+	//CACHE////////////////////////////////////////////////
+
+	/**
+	 * CACHE: If true, compressed entries are kept in {@link #cacheDirectory}
+	 * and reused when the same content is compressed again with the same
+	 * options. Disabled by default, as it writes outside the project.
+	 */
+	@Parameter(property = "jzopfli.cache", defaultValue="false")
+	boolean cache;
+	/**
+	 * CACHE: Directory of the cache of compressed entries.
+	 */
+	@Parameter(property = "jzopfli.cache.directory", defaultValue="${user.home}/.m2/jzopfli-cache")
+	File cacheDirectory;
+	/**
+	 * CACHE: Maximum size of the cache in bytes. The least recently used
+	 * entries are evicted at the end of the build.
+	 */
+	@Parameter(property = "jzopfli.cache.size", defaultValue="1073741824")
+	long cacheSize;
 
 	//MAVEN////////////////////////////////////////////////
 
@@ -190,6 +366,47 @@ public class JzopfliMojo extends AbstractMojo {
 	@Parameter(property = "jzopfli.skip", defaultValue = "false")
 	private boolean skip;
 
+	/**
+	 * MAVEN: Set to {@code true} to recompress archives that were already
+	 * recompressed with the same options and did not change since. Such
+	 * archives are recorded in {@code jzopfli.manifest} in the build
+	 * directory.
+	 */
+	@Parameter(property = "jzopfli.force", defaultValue = "false")
+	private boolean force;
+
+	/**
+	 * MAVEN: If true, a recompressed archive is inflated and compared with
+	 * the archive, nested archives included, before replacing it. The build
+	 * fails, leaving the archive unchanged, if their data differ.
+	 */
+	@Parameter(property = "jzopfli.verify", defaultValue = "true")
+	private boolean verify;
+
+	/**
+	 * MAVEN: If true, the metrics of every entry are written to
+	 * {@code jzopfli-report.csv} in the build directory, and a summary with
+	 * the {@link #reportTop} slowest entries, the ones with the lowest gain
+	 * and percentiles of the time per megabyte to {@code jzopfli-report.json}.
+	 * Disabled by default.
+	 */
+	@Parameter(property = "jzopfli.report", defaultValue = "false")
+	private boolean report;
+
+	/**
+	 * MAVEN: Number of entries listed in each ranking of the report.
+	 */
+	@Parameter(property = "jzopfli.reportTop", defaultValue = "10")
+	private int reportTop;
+
+	/**
+	 * MAVEN: Number of seconds between two progress messages, with the
+	 * entries and bytes recompressed, the current throughput and the
+	 * estimated remaining time. The default, 0, logs no progress messages.
+	 */
+	@Parameter(property = "jzopfli.progressInterval", defaultValue = "0")
+	private int progressInterval;
+
 	/**
 	 * MAVEN: Controls processing of the main artifact produced by the project.
 	 *
@@ -226,73 +443,282 @@ public class JzopfliMojo extends AbstractMojo {
 	@Parameter
 	private String[] excludeClassifiers;
 
+	/**
+	 * MAVEN: Archive already recompressed, such as the previous release of
+	 * the processed archive. Entries whose name, CRC and size match one of
+	 * its entries are copied from it instead of being recompressed.
+	 */
+	@Parameter(property = "jzopfli.referenceArchive")
+	private File referenceArchive;
+
+	/**
+	 * MAVEN: If true and no {@link #referenceArchive} is set, the previous
+	 * version of a processed artifact found in the local repository is used
+	 * as its reference archive.
+	 */
+	@Parameter(property = "jzopfli.resolveReference", defaultValue = "false")
+	private boolean resolveReference;
+
 	/**
 	 * The Maven project.
 	 */
 	@Parameter(defaultValue = "${project}", readonly = true, required = true)
-	private MavenProject project;
+	MavenProject project;
+
+	/**
+	 * The local repository, where previous versions of the artifacts are
+	 * looked up.
+	 */
+	@Parameter(defaultValue = "${localRepository}", readonly = true)
+	private ArtifactRepository localRepository;
+
+	private final Map<File, Artifact> artifacts = new HashMap<File, Artifact>();
+
+	private ExecutorService executor;
+
+	private MemoryBudget memory;
+
+	private EntryCache entryCache;
+
+	private RecompressStatistics statistics;
+
+	private TimeBudget time;
+
+	private ArchiveManifest manifest;
+
+	private OptimizationReport optimizationReport;
+
+	private RecompressProgress progress;
+
+	private String optionsFingerprint;
+
+	private AtomicInteger upToDate;
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public final void execute() throws MojoExecutionException {
 		if (!this.skip) {
-			int processed = 0;
+			List<File> archives = new ArrayList<File>();
 
 			if (this.archive != null) {
-				processArchive(archive);
-				processed++;
+				archives.add(archive);
 			} else {
-				if (processMainArtifact)
-					processed += processArtifact(this.project.getArtifact()) ? 1 : 0;
-
-				if (processAttachedArtifacts) {
-					Collection<String> includes = new HashSet<String>();
-					if (includeClassifiers != null)
-						includes.addAll(Arrays.asList(includeClassifiers));
-
-					Collection<String> excludes = new HashSet<String>();
-					if (excludeClassifiers != null)
-						excludes.addAll(Arrays.asList(excludeClassifiers));
-
-					for (Object o : project.getAttachedArtifacts()) {
-						Artifact artifact = (Artifact) o;
-
-						if (!includes.isEmpty() && !includes.contains(artifact.getClassifier()))
-							continue;
-						if (excludes.contains(artifact.getClassifier()))
-							continue;
-
-						processed += processArtifact(artifact) ? 1 : 0;
-					}
-				} else {
-					if (verbose)
-						getLog().info(getMessage("ignoringAttachments"));
-					else
-						getLog().debug(getMessage("ignoringAttachments"));
-				}
+				for (MavenProject project : getProjects())
+					processProject(project, archives);
 
 				if (archiveDirectory != null) {
 					String includeList = (includes != null) ? StringUtils.join(includes, ",") : null;
 					String excludeList = (excludes != null) ? StringUtils.join(excludes, ",") : null;
 
-					List<File> jarFiles;
 					try {
-						jarFiles = FileUtils.getFiles(archiveDirectory, includeList, excludeList);
+						archives.addAll(FileUtils.getFiles(archiveDirectory, includeList, excludeList));
 					} catch (IOException e) {
 						throw new MojoExecutionException("Failed to scan archive directory for JARs: " + e.getMessage(), e);
 					}
-
-					for (File jarFile : jarFiles) {
-						processArchive(jarFile);
-						processed++;
-					}
 				}
 			}
-			getLog().info(getMessage("processed", processed));
+
+			resolveRules();
+			process(archives);
 		} else
 			getLog().info(getMessage("disabled"));
 	}
 
+	/**
+	 * Recompresses the selected archives and logs what was gained.
+	 *
+	 * @param archives
+	 *            The archives to process.
+	 * @throws MojoExecutionException
+	 *             if processing an archive fails.
+	 */
+	void process(final List<File> archives) throws MojoExecutionException {
+		entryCache = cache ? new EntryCache(cacheDirectory.toPath(), cacheSize) : null;
+		statistics = new RecompressStatistics();
+		time = timeBudget > 0 ? newTimeBudget() : null;
+		manifest = new ArchiveManifest(Paths.get(project.getBuild().getDirectory(), "jzopfli.manifest"));
+		optionsFingerprint = fingerprint();
+		upToDate = new AtomicInteger();
+		if (!force)
+			try {
+				manifest.load();
+			} catch (IOException e) {
+				getLog().warn(getMessage("manifestFailure", e.getMessage()));
+			}
+		optimizationReport = report ? new OptimizationReport() : null;
+		progress = new RecompressProgress();
+		ScheduledExecutorService progressLog = progressInterval > 0 ? scheduleProgress() : null;
+		try {
+			processArchives(archives);
+		} finally {
+			if (progressLog != null)
+				progressLog.shutdownNow();
+		}
+		if (optimizationReport != null)
+			writeReport();
+		try {
+			manifest.store();
+		} catch (IOException e) {
+			getLog().warn(getMessage("manifestFailure", e.getMessage()));
+		}
+		int skipped = upToDate.get();
+		getLog().info(getMessage("processed", archives.size() - skipped, skipped));
+		if (time != null && !time.getDegradations().isEmpty()) {
+			long loss = 0;
+			for (TimeBudget.Degradation degradation : time.getDegradations()) {
+				getLog().info(getMessage("degraded", degradation.getArchive(), degradation.getName(), degradation.getLevel(),
+						degradation.getSize(), degradation.getLoss()));
+				loss += degradation.getLoss();
+			}
+			getLog().info(getMessage("timeBudgetExceeded", timeBudget, time.getDegradations().size(), loss));
+		}
+		if (statistics.getDeflatedEntries() > 0)
+			getLog().info(getMessage("iterationStatistics", statistics.getDeflatedEntries(), statistics.getAverageIterations()));
+		if (statistics.getReferencedEntries() > 0)
+			getLog().info(getMessage("referenceStatistics", statistics.getReferencedEntries(), statistics.getReferencedBytes()));
+		if (statistics.getDeduplicatedEntries() > 0)
+			getLog().info(getMessage("dedupStatistics", statistics.getDeduplicatedEntries(), statistics.getDeduplicatedBytes(),
+					statistics.getDeduplicationSavedNanos() / 1e9));
+		if (statistics.getScreenedEntries() > 0)
+			getLog().info(getMessage("screenStatistics", statistics.getScreenedEntries(), statistics.getScreenedBytes(),
+					Math.max(0, statistics.getScreenSavedNanos()) / 1e9));
+		if (entryCache != null) {
+			getLog().info(getMessage("cacheStatistics", entryCache.getHits(), entryCache.getMisses(), entryCache.getHitBytes()));
+			try {
+				entryCache.trim();
+			} catch (IOException e) {
+				getLog().warn(getMessage("cacheTrimFailure", entryCache.getDirectory(), e.getMessage()));
+			}
+		}
+	}
+
+	/**
+	 * @return the projects whose artifacts are processed.
+	 */
+	List<MavenProject> getProjects() {
+		return Collections.singletonList(project);
+	}
+
+	/**
+	 * @return {@code true} to run the largest entries of all archives first
+	 *         on a {@link LargestFirstExecutor}, instead of the entries of
+	 *         each archive in order.
+	 */
+	boolean isLargestFirst() {
+		return false;
+	}
+
+	/**
+	 * Selects the main artifact and the attachments of a project for
+	 * processing.
+	 *
+	 * @param project
+	 *            The project whose artifacts to process.
+	 * @param archives
+	 *            The archives to process.
+	 */
+	private void processProject(final MavenProject project, final List<File> archives) {
+		if (processMainArtifact)
+			processArtifact(project.getArtifact(), archives);
+
+		if (processAttachedArtifacts) {
+			Collection<String> includes = new HashSet<String>();
+			if (includeClassifiers != null)
+				includes.addAll(Arrays.asList(includeClassifiers));
+
+			Collection<String> excludes = new HashSet<String>();
+			if (excludeClassifiers != null)
+				excludes.addAll(Arrays.asList(excludeClassifiers));
+
+			for (Object o : project.getAttachedArtifacts()) {
+				Artifact artifact = (Artifact) o;
+
+				if (!includes.isEmpty() && !includes.contains(artifact.getClassifier()))
+					continue;
+				if (excludes.contains(artifact.getClassifier()))
+					continue;
+
+				processArtifact(artifact, archives);
+			}
+		} else {
+			if (verbose)
+				getLog().info(getMessage("ignoringAttachments"));
+			else
+				getLog().debug(getMessage("ignoringAttachments"));
+		}
+	}
+
+	/**
+	 * Processes the given archives. Entries of all archives are deflated on
+	 * one shared pool of {@link #threads} threads, and the heap they hold is
+	 * bounded by {@link #memoryBudget}. The log output of an archive is written
+	 * in one block once it is processed. If {@link #isLargestFirst()}, the
+	 * largest archives are started first and the pool runs the largest
+	 * entries first.
+	 *
+	 * @param archives
+	 *            The archives to process.
+	 * @throws MojoExecutionException
+	 *             if processing an archive fails.
+	 */
+	private void processArchives(final List<File> archives) throws MojoExecutionException {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		long budget = memoryBudget > 0 ? memoryBudget : Runtime.getRuntime().maxMemory() / 2;
+		memory = new MemoryBudget(budget);
+		if (poolSize == 1 || archives.isEmpty()) {
+			for (File file : archives)
+				processArchive(file, getLog());
+			return;
+		}
+
+		if (isLargestFirst()) {
+			executor = new LargestFirstExecutor(poolSize);
+			Collections.sort(archives, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					return Long.compare(f2.length(), f1.length());
+				}
+			});
+		} else
+			executor = Executors.newFixedThreadPool(poolSize);
+		// Archives are read and written by their own threads, which only wait
+		// for the entries deflated on the shared pool.
+		ExecutorService archiveExecutor = Executors.newFixedThreadPool(Math.min(poolSize, archives.size()));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final File file : archives)
+				futures.add(archiveExecutor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws MojoExecutionException {
+						BufferedLog log = new BufferedLog(getLog());
+						try {
+							processArchive(file, log);
+						} finally {
+							log.flush();
+						}
+						return null;
+					}
+				}));
+
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof MojoExecutionException)
+						throw (MojoExecutionException) e.getCause();
+					throw new MojoExecutionException(getMessage("failure", e.getCause().getMessage()), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MojoExecutionException(getMessage("failure", e.getMessage()), e);
+				}
+			}
+		} finally {
+			archiveExecutor.shutdownNow();
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
 	/**
 	 * Checks whether the specified artifact is a ZIP file.
 	 *
@@ -313,24 +739,25 @@ public class JzopfliMojo extends AbstractMojo {
 	}
 
 	/**
-	 * Processes a given artifact.
+	 * Selects a given artifact for processing.
 	 *
 	 * @param artifact
 	 *            The artifact to process.
-	 * @return <code>true</code> if the artifact is a JAR and was processed,
-	 *         <code>false</code> otherwise.
+	 * @param archives
+	 *            The archives to process.
+	 * @return <code>true</code> if the artifact is a ZIP or a gzip file and
+	 *         was added to {@code archives}, <code>false</code> otherwise.
 	 * @throws NullPointerException
 	 *             if {@code artifact} is {@code null}.
-	 * @throws MojoExecutionException
-	 *             if processing {@code artifact} fails.
 	 */
-	private boolean processArtifact(final Artifact artifact) throws MojoExecutionException {
+	private boolean processArtifact(final Artifact artifact, final List<File> archives) {
 		if (artifact == null)
 			throw new NullPointerException("artifact");
 
 		boolean processed = false;
-		if (isZipFile(artifact)) {
-			processArchive(artifact.getFile());
+		if (isZipFile(artifact) || artifact.getFile() != null && GzipTools.isGzip(artifact.getFile().toPath())) {
+			archives.add(artifact.getFile());
+			artifacts.put(artifact.getFile(), artifact);
 			processed = true;
 		} else {
 			if (this.verbose)
@@ -346,65 +773,359 @@ public class JzopfliMojo extends AbstractMojo {
 	 *
 	 * @param input
 	 *            The archive to process.
+	 * @param log
+	 *            The log to report to.
 	 * @throws NullPointerException
 	 *             if {@code archive} is {@code null}.
 	 * @throws MojoExecutionException
 	 *             if processing {@code archive} fails.
 	 */
-	private void processArchive(final File input) throws MojoExecutionException {
+	private void processArchive(final File input, final Log log) throws MojoExecutionException {
 		if (input == null)
 			throw new NullPointerException("archive");
 
+		try {
+			if (!force && manifest.isUpToDate(input.toPath(), optionsFingerprint)) {
+				log.info(getMessage("upToDate", input));
+				upToDate.incrementAndGet();
+				return;
+			}
+		} catch (IOException e) {
+			if (log.isDebugEnabled())
+				log.debug(getMessage("manifestFailure", e.getMessage()));
+		}
+
 		if (this.verbose)
-			getLog().info(getMessage("processing", input));
-		else if (getLog().isDebugEnabled())
-			getLog().debug(getMessage("processing", input));
+			log.info(getMessage("processing", input));
+		else if (log.isDebugEnabled())
+			log.debug(getMessage("processing", input));
 
 		try{
 			Path target=Paths.get(project.getBuild().getDirectory());
-			Path tempOutput=Files.createTempFile(target, "jzopfli", null);
-			ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
-			deflateOpts.setVerbose(verbose);
-			deflateOpts.setVerboseMore(verboseMore);
-			deflateOpts.setNumIterations(numIterations);
-			deflateOpts.setBlocSplitting(blockSplitting);
-			deflateOpts.setBlockSplittingLast(blockSplittingLast);
-			deflateOpts.setBlockSplittingMax(blockSplittingMax);
-			deflateOpts.setStrategy(strategy);
-			deflateOpts.setMasterBlockSize(masterBlockSize);
-			deflateOpts.setWindowSize(windowSize);
-			ZipOptions zipOpts=new ZipOptions();
-			zipOpts.setKeepDirectories(keepDirectories);
-			zipOpts.setKeepExtra(keepExtra);
-			zipOpts.setKeepComment(keepComment);
-			zipOpts.setKeepNestedZips(keepNestedZips);
-
-			try (ZipFile zip = new ZipFile(input);
-					OutputStream os = Files.newOutputStream(tempOutput)) {
-				ZopfliTools.recompress(zip, os, zipOpts, deflateOpts);
-			}
-
 			Path inputPath=input.toPath();
-			Path relative=target.relativize(inputPath);
-			long inLength = Files.size(inputPath);
-			long gain = inLength - Files.size(tempOutput);
-			if(gain>0){
-				//write into the file. Avoid replacing or deleting it
-				try(OutputStream os=Files.newOutputStream(inputPath)){
-					Files.copy(tempOutput, os);
+			Path tempOutput=createTempFile(inputPath, target);
+			try{
+				ZopfliDeflaterOptions deflateOpts=newDeflaterOptions(null);
+				ZipOptions zipOpts=newZipOptions();
+				zipOpts.setExecutor(executor);
+				zipOpts.setLargestFirst(isLargestFirst() && executor != null);
+				zipOpts.setMemoryBudget(memory);
+				zipOpts.setCache(entryCache);
+				zipOpts.setStatistics(statistics);
+				zipOpts.setTimeBudget(time);
+				zipOpts.setListener(optimizationReport);
+				zipOpts.setProgress(progress);
+				zipOpts.setReference(findReference(input));
+				if (zipOpts.getReference() != null) {
+					if (this.verbose)
+						log.info(getMessage("reference", input, zipOpts.getReference()));
+					else if (log.isDebugEnabled())
+						log.debug(getMessage("reference", input, zipOpts.getReference()));
+				}
+
+				try (FileChannel channel = FileChannel.open(tempOutput, StandardOpenOption.WRITE)) {
+					if (GzipTools.isGzip(inputPath))
+						GzipTools.recompress(inputPath, channel, zipOpts, deflateOpts);
+					else
+						ZopfliTools.recompress(inputPath, channel, zipOpts, deflateOpts);
 				}
-				Files.delete(tempOutput);
 
-				double ratio = (double)gain / inLength;
-				getLog().info(getMessage("reduced", relative, gain, ratio, inLength));
-			}else{
-				getLog().info(getMessage("notReduced", relative));
+				Path relative=target.relativize(inputPath);
+				long inLength = Files.size(inputPath);
+				long gain = inLength - Files.size(tempOutput);
+				if(gain>0){
+					if (verify)
+						verify(inputPath, tempOutput, zipOpts, log);
+					replace(inputPath, tempOutput);
+
+					double ratio = (double)gain / inLength;
+					log.info(getMessage("reduced", relative, gain, ratio, inLength));
+				}else{
+					log.info(getMessage("notReduced", relative));
+				}
+			}finally{
+				Files.deleteIfExists(tempOutput);
 			}
+			if (!isDegraded(inputPath))
+				try {
+					manifest.record(inputPath, optionsFingerprint);
+				} catch (IOException e) {
+					if (log.isDebugEnabled())
+						log.debug(getMessage("manifestFailure", e.getMessage()));
+				}
 		} catch (Exception e) {
 			throw new MojoExecutionException(getMessage("failure", e.getMessage()), e);
 		}
 	}
 
+	/**
+	 * Checks that the recompressed archive holds the data of the archive
+	 * before it replaces it, on {@link #executor} if the archives share a
+	 * pool, or else on a pool of one thread per processor.
+	 */
+	private void verify(final Path archive, final Path recompressed, final ZipOptions zipOpts, final Log log) throws IOException {
+		long start = System.nanoTime();
+		ExecutorService pool = null;
+		if (zipOpts.getExecutor() == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			zipOpts.setExecutor(pool);
+		}
+		try {
+			ArchiveVerifier.verify(archive, recompressed, zipOpts);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+		if (this.verbose)
+			log.info(getMessage("verified", archive, (System.nanoTime() - start) / 1e9));
+		else if (log.isDebugEnabled())
+			log.debug(getMessage("verified", archive, (System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * Logs {@link #progress} every {@link #progressInterval} seconds, so that
+	 * a long recompression shows it is alive.
+	 */
+	private ScheduledExecutorService scheduleProgress() {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jzopfli-progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long remaining = progress.getRemainingNanos();
+				getLog().info(getMessage("progress", progress.getDoneEntries(), progress.getTotalEntries(), progress.getDoneBytes() / 1e6,
+						progress.getTotalBytes() / 1e6, progress.sampleThroughput() / 1e6, remaining < 0 ? -1 : remaining / 1e9));
+			}
+		}, progressInterval, progressInterval, TimeUnit.SECONDS);
+		return scheduler;
+	}
+
+	/**
+	 * Writes {@link #optimizationReport} to the build directory.
+	 */
+	private void writeReport() {
+		Path target = Paths.get(project.getBuild().getDirectory());
+		try {
+			Files.createDirectories(target);
+			optimizationReport.writeCsv(target.resolve("jzopfli-report.csv"));
+			optimizationReport.writeJson(target.resolve("jzopfli-report.json"), reportTop);
+			getLog().info(getMessage("report", target.resolve("jzopfli-report.json")));
+		} catch (IOException e) {
+			getLog().warn(getMessage("reportFailure", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Creates the temporary output of an archive next to it, so that it can
+	 * be moved over the archive, or in {@code fallback} if its directory is
+	 * not writable.
+	 */
+	private static Path createTempFile(final Path archive, final Path fallback) throws IOException {
+		try {
+			return Files.createTempFile(archive.toAbsolutePath().getParent(), "jzopfli", null);
+		} catch (IOException e) {
+			return Files.createTempFile(fallback, "jzopfli", null);
+		}
+	}
+
+	/**
+	 * Replaces an archive with its recompressed version. The recompressed
+	 * file is moved atomically over the archive, with the permissions of the
+	 * archive, so the archive is never left half written. If the file system
+	 * cannot do so, the recompressed file is copied into the archive.
+	 */
+	private static void replace(final Path archive, final Path recompressed) throws IOException {
+		try {
+			PosixFileAttributeView view = Files.getFileAttributeView(archive, PosixFileAttributeView.class);
+			if (view != null)
+				Files.setPosixFilePermissions(recompressed, view.readAttributes().permissions());
+			Files.move(recompressed, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			//write into the file. Avoid replacing or deleting it
+			try (FileChannel in = FileChannel.open(recompressed, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(archive, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long size = in.size();
+				for (long position = 0; position < size;)
+					position += in.transferTo(position, size - position, out);
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if the time budget degraded entries of
+	 *         {@code archive}, which is then not fully optimized.
+	 */
+	private boolean isDegraded(final Path archive) {
+		if (time != null)
+			for (TimeBudget.Degradation degradation : time.getDegradations())
+				if (degradation.getArchive().equals(archive.toString()))
+					return true;
+		return false;
+	}
+
+	/**
+	 * Describes the options that influence the recompressed archives, to
+	 * tell whether an archive recorded in the manifest is up to date.
+	 */
+	private String fingerprint() {
+		StringBuilder result = new StringBuilder(EntryCache.fingerprint(newDeflaterOptions(null)));
+		result.append("convergence=").append(convergence).append(';');
+		result.append("keepDirectories=").append(keepDirectories).append(';');
+		result.append("keepExtra=").append(keepExtra).append(';');
+		result.append("keepComment=").append(keepComment).append(';');
+		result.append("keepNestedZips=").append(keepNestedZips).append(';');
+		result.append("keepGzipName=").append(keepGzipName).append(';');
+		result.append("keepGzipTime=").append(keepGzipTime).append(';');
+		result.append("nestedDepth=").append(nestedDepth).append(';');
+		result.append("neverWorse=").append(neverWorse).append(';');
+		result.append("screenRatio=").append(screenRatio).append(';');
+		result.append("screenSampleSize=").append(screenSampleSize).append(';');
+		if (variants != null)
+			for (DeflaterVariant variant : variants)
+				result.append("variant=").append(EntryCache.fingerprint(variant.apply(newDeflaterOptions(null)))).append(';');
+		if (rules != null)
+			for (EntryRule rule : rules) {
+				result.append("rule=").append(Arrays.toString(rule.getIncludes())).append(',').append(rule.getMinSize()).append(',')
+						.append(rule.getMaxSize()).append(',').append(rule.getMode()).append(',');
+				if (rule.getDeflaterOptions() != null)
+					result.append(EntryCache.fingerprint(rule.getDeflaterOptions()));
+				result.append(';');
+			}
+		return result.toString();
+	}
+
+	/**
+	 * Orders artifact versions, whose {@link Comparable} is raw in Maven 2.
+	 */
+	static final Comparator<ArtifactVersion> VERSIONS = new Comparator<ArtifactVersion>() {
+		@SuppressWarnings("unchecked")
+		@Override
+		public int compare(ArtifactVersion v1, ArtifactVersion v2) {
+			return v1.compareTo(v2);
+		}
+	};
+
+	/**
+	 * Finds the reference archive of an archive.
+	 *
+	 * @param input
+	 *            The archive to process.
+	 * @return {@link #referenceArchive}, the latest version before the
+	 *         current one of the artifact of {@code input} in the local
+	 *         repository if {@link #resolveReference} is set, or {@code null}.
+	 */
+	private Path findReference(final File input) {
+		if (referenceArchive != null)
+			return referenceArchive.toPath();
+		Artifact artifact = artifacts.get(input);
+		if (!resolveReference || artifact == null || localRepository == null)
+			return null;
+
+		File directory = new File(localRepository.getBasedir(), artifact.getGroupId().replace('.', '/') + '/' + artifact.getArtifactId());
+		File[] versions = directory.listFiles();
+		if (versions == null)
+			return null;
+		ArtifactVersion current = new DefaultArtifactVersion(artifact.getBaseVersion());
+		String suffix = (artifact.getClassifier() == null ? "" : "-" + artifact.getClassifier()) + '.' + artifact.getArtifactHandler().getExtension();
+		ArtifactVersion latest = null;
+		File reference = null;
+		for (File version : versions) {
+			ArtifactVersion candidate = new DefaultArtifactVersion(version.getName());
+			if (VERSIONS.compare(candidate, current) >= 0 || latest != null && VERSIONS.compare(candidate, latest) <= 0)
+				continue;
+			File file = new File(version, artifact.getArtifactId() + '-' + version.getName() + suffix);
+			if (file.isFile()) {
+				latest = candidate;
+				reference = file;
+			}
+		}
+		return reference == null ? null : reference.toPath();
+	}
+
+	/**
+	 * Creates the time budget of {@link #timeBudget} seconds, whose reduced
+	 * level runs a fifth of {@link #numIterations}.
+	 */
+	private TimeBudget newTimeBudget() {
+		EntryRule reduced = new EntryRule();
+		reduced.setNumIterations(Math.max(1, numIterations / 5));
+		return new TimeBudget(timeBudget, TimeUnit.SECONDS, newDeflaterOptions(reduced),
+				(double) reduced.getNumIterations() / Math.max(1, numIterations),
+				threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Gives each rule overriding a deflater option its own deflater options,
+	 * completed with the plugin configuration.
+	 */
+	void resolveRules() {
+		if (rules != null)
+			for (EntryRule rule : rules)
+				if (rule.getDeflaterOptions() == null && hasDeflaterSettings(rule))
+					rule.setDeflaterOptions(newDeflaterOptions(rule));
+	}
+
+	/**
+	 * @return {@code true} if {@code rule} overrides one of the deflater
+	 *         options.
+	 */
+	private static boolean hasDeflaterSettings(final EntryRule rule) {
+		return rule.getNumIterations() != null || rule.getBlockSplitting() != null || rule.getBlockSplittingLast() != null
+				|| rule.getBlockSplittingMax() != null || rule.getStrategy() != null;
+	}
+
+	/**
+	 * Creates the zip options of the plugin configuration, without the
+	 * resources shared by the archives of the build.
+	 */
+	ZipOptions newZipOptions() {
+		ZipOptions zipOpts = new ZipOptions();
+		zipOpts.setKeepDirectories(keepDirectories);
+		zipOpts.setKeepExtra(keepExtra);
+		zipOpts.setKeepComment(keepComment);
+		zipOpts.setKeepNestedZips(keepNestedZips);
+		zipOpts.setKeepGzipName(keepGzipName);
+		zipOpts.setKeepGzipTime(keepGzipTime);
+		zipOpts.setNestedDepth(nestedDepth);
+		zipOpts.setNeverWorse(neverWorse);
+		zipOpts.setScreenRatio(screenRatio);
+		zipOpts.setScreenSampleSize(screenSampleSize);
+		zipOpts.setConvergence(convergence);
+		zipOpts.setSpillThreshold(spillThreshold);
+		zipOpts.setTempDirectory(Paths.get(project.getBuild().getDirectory()));
+		zipOpts.setRules(rules == null ? null : Arrays.asList(rules));
+		zipOpts.setVariants(variants == null ? null : Arrays.asList(variants));
+		return zipOpts;
+	}
+
+	/**
+	 * Creates the deflater options of the plugin configuration.
+	 *
+	 * @param rule
+	 *            The rule overriding some of the options, may be
+	 *            {@code null}.
+	 * @return The deflater options.
+	 */
+	ZopfliDeflaterOptions newDeflaterOptions(final EntryRule rule) {
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setVerbose(verbose);
+		deflateOpts.setVerboseMore(verboseMore);
+		deflateOpts.setNumIterations(rule != null && rule.getNumIterations() != null ? rule.getNumIterations() : numIterations);
+		deflateOpts.setBlocSplitting(rule != null && rule.getBlockSplitting() != null ? rule.getBlockSplitting() : blockSplitting);
+		deflateOpts.setBlockSplittingLast(rule != null && rule.getBlockSplittingLast() != null ? rule.getBlockSplittingLast() : blockSplittingLast);
+		deflateOpts.setBlockSplittingMax(rule != null && rule.getBlockSplittingMax() != null ? rule.getBlockSplittingMax() : blockSplittingMax);
+		deflateOpts.setStrategy(rule != null && rule.getStrategy() != null ? rule.getStrategy() : strategy);
+		deflateOpts.setMasterBlockSize(masterBlockSize);
+		deflateOpts.setWindowSize(windowSize);
+		return deflateOpts;
+	}
+
 	/**
 	 * Gets a message for a given key from the resource bundle backing the
 	 * implementation.
@@ -421,7 +1142,7 @@ public class JzopfliMojo extends AbstractMojo {
 	 *             if there is no message available matching {@code key} or
 	 *             accessing the resource bundle fails.
 	 */
-	private String getMessage(final String key, final Object... args) {
+	String getMessage(final String key, final Object... args) {
 		if (key == null)
 			throw new NullPointerException("key");
 		return new MessageFormat(ResourceBundle.getBundle("jzopfli").getString(key)).format(args);
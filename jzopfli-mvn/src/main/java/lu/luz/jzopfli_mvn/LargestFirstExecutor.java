@@ -0,0 +1,71 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool running the largest entries first, whatever archive they belong to,
+ * so that a pool shared by many archives does not end with one large entry
+ * compressed alone. Other tasks, such as the blocks of an entry already
+ * being compressed, run before any queued entry; tasks of the same priority
+ * run in the order they were submitted.
+ */
+public final class LargestFirstExecutor extends ThreadPoolExecutor {
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	public LargestFirstExecutor(int threads) {
+		super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(64, new Comparator<Runnable>() {
+			@Override
+			public int compare(Runnable r1, Runnable r2) {
+				int result = Long.compare(priority(r2), priority(r1));
+				return result != 0 ? result : Long.compare(sequence(r1), sequence(r2));
+			}
+		}));
+	}
+
+	/**
+	 * A task compressing an entry of {@code size} uncompressed bytes.
+	 */
+	static final class EntryTask<T> extends DiscardingTask<T> {
+		private final long size;
+		private final long sequence = SEQUENCE.incrementAndGet();
+
+		EntryTask(Callable<T> callable, long size) {
+			super(callable);
+			this.size = size;
+		}
+	}
+
+	private static long priority(Runnable task) {
+		return task instanceof EntryTask ? ((EntryTask<?>) task).size : Long.MAX_VALUE;
+	}
+
+	private static long sequence(Runnable task) {
+		return task instanceof EntryTask ? ((EntryTask<?>) task).sequence : 0;
+	}
+}
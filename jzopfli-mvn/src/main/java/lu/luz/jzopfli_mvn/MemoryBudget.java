@@ -0,0 +1,66 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+/**
+ * Bytes of heap that entries being recompressed may hold at the same time,
+ * shared by all archives processed concurrently. A request larger than the
+ * whole budget is reduced to the budget, so it runs alone.
+ */
+public final class MemoryBudget {
+	private final long capacity;
+	private long available;
+
+	public MemoryBudget(long capacity) {
+		if(capacity<=0)
+			throw new IllegalArgumentException("capacity: "+capacity);
+		this.capacity = capacity;
+		this.available = capacity;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return {@code true} if {@code bytes} were reserved.
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		long request=Math.min(bytes, capacity);
+		if(request>available)
+			return false;
+		available-=request;
+		return true;
+	}
+
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		long request=Math.min(bytes, capacity);
+		while(request>available)
+			wait();
+		available-=request;
+	}
+
+	public synchronized void release(long bytes) {
+		available=Math.min(capacity, available+Math.min(bytes, capacity));
+		notifyAll();
+	}
+}
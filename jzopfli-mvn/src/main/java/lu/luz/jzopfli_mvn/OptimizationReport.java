@@ -0,0 +1,172 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects the metrics of the entries of all archives and writes them as a
+ * CSV file, one line per entry, and as a JSON summary with the slowest
+ * entries, the entries with the lowest gain and percentiles of the time
+ * spent per megabyte.
+ */
+final class OptimizationReport implements EntryListener {
+	private static final double[] PERCENTILES = { 50, 90, 99, 100 };
+
+	private final List<EntryMetrics> entries = new ArrayList<EntryMetrics>();
+
+	@Override
+	public synchronized void entryCompressed(EntryMetrics metrics) {
+		entries.add(metrics);
+	}
+
+	synchronized List<EntryMetrics> getEntries() {
+		return new ArrayList<EntryMetrics>(entries);
+	}
+
+	void writeCsv(Path file) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("archive,name,outcome,size,originalSize,compressedSize,gain,inflateNanos,deflateNanos,totalNanos,iterations\n");
+			for (EntryMetrics entry : getEntries())
+				writer.write(csv(entry.getArchive()) + ',' + csv(entry.getName()) + ',' + entry.getOutcome() + ',' + entry.getSize() + ','
+						+ entry.getOriginalSize() + ',' + entry.getCompressedSize() + ',' + entry.getGain() + ',' + entry.getInflateNanos() + ','
+						+ entry.getDeflateNanos() + ',' + entry.getTotalNanos() + ',' + entry.getIterations() + '\n');
+		}
+	}
+
+	/**
+	 * @param top
+	 *            the number of entries listed as the slowest and as the ones
+	 *            with the lowest gain.
+	 */
+	void writeJson(Path file, int top) throws IOException {
+		List<EntryMetrics> all = getEntries();
+		long size = 0, originalSize = 0, compressedSize = 0, nanos = 0;
+		List<EntryMetrics> compressed = new ArrayList<EntryMetrics>();
+		for (EntryMetrics entry : all) {
+			size += entry.getSize();
+			originalSize += entry.getOriginalSize();
+			compressedSize += entry.getCompressedSize();
+			nanos += entry.getTotalNanos();
+			if (entry.getDeflateNanos() > 0 && entry.getSize() > 0)
+				compressed.add(entry);
+		}
+
+		List<EntryMetrics> slowest = new ArrayList<EntryMetrics>(all);
+		Collections.sort(slowest, new Comparator<EntryMetrics>() {
+			@Override
+			public int compare(EntryMetrics e1, EntryMetrics e2) {
+				return Long.compare(e2.getTotalNanos(), e1.getTotalNanos());
+			}
+		});
+		List<EntryMetrics> lowestGain = new ArrayList<EntryMetrics>(compressed);
+		Collections.sort(lowestGain, new Comparator<EntryMetrics>() {
+			@Override
+			public int compare(EntryMetrics e1, EntryMetrics e2) {
+				int result = Long.compare(e1.getGain(), e2.getGain());
+				return result != 0 ? result : Long.compare(e2.getDeflateNanos(), e1.getDeflateNanos());
+			}
+		});
+		double[] millisPerMegabyte = new double[compressed.size()];
+		for (int i = 0; i < millisPerMegabyte.length; i++)
+			millisPerMegabyte[i] = (double) compressed.get(i).getDeflateNanos() / compressed.get(i).getSize();
+		Arrays.sort(millisPerMegabyte);
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"entries\": ").append(all.size()).append(",\n");
+		json.append("  \"size\": ").append(size).append(",\n");
+		json.append("  \"originalSize\": ").append(originalSize).append(",\n");
+		json.append("  \"compressedSize\": ").append(compressedSize).append(",\n");
+		json.append("  \"totalNanos\": ").append(nanos).append(",\n");
+		json.append("  \"millisPerMegabyte\": {");
+		for (int i = 0; i < PERCENTILES.length; i++)
+			json.append(i == 0 ? "" : ", ").append("\"p").append((int) PERCENTILES[i]).append("\": ")
+					.append(String.format(Locale.ROOT, "%.3f", percentile(millisPerMegabyte, PERCENTILES[i])));
+		json.append("},\n");
+		json.append("  \"slowest\": ");
+		append(json, slowest.subList(0, Math.min(top, slowest.size())));
+		json.append(",\n  \"lowestGain\": ");
+		append(json, lowestGain.subList(0, Math.min(top, lowestGain.size())));
+		json.append("\n}\n");
+		Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the nearest-rank percentile of sorted values, 0 if there are
+	 *         none.
+	 */
+	static double percentile(double[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static void append(StringBuilder json, List<EntryMetrics> entries) {
+		json.append('[');
+		for (int i = 0; i < entries.size(); i++) {
+			EntryMetrics entry = entries.get(i);
+			json.append(i == 0 ? "\n" : ",\n").append("    {\"archive\": ").append(string(entry.getArchive()));
+			json.append(", \"name\": ").append(string(entry.getName()));
+			json.append(", \"outcome\": \"").append(entry.getOutcome()).append('"');
+			json.append(", \"size\": ").append(entry.getSize());
+			json.append(", \"originalSize\": ").append(entry.getOriginalSize());
+			json.append(", \"compressedSize\": ").append(entry.getCompressedSize());
+			json.append(", \"gain\": ").append(entry.getGain());
+			json.append(", \"inflateNanos\": ").append(entry.getInflateNanos());
+			json.append(", \"deflateNanos\": ").append(entry.getDeflateNanos());
+			json.append(", \"totalNanos\": ").append(entry.getTotalNanos());
+			json.append(", \"iterations\": ").append(entry.getIterations()).append('}');
+		}
+		json.append(entries.isEmpty() ? "]" : "\n  ]");
+	}
+
+	private static String string(String value) {
+		StringBuilder result = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\')
+				result.append('\\').append(c);
+			else if (c < 0x20)
+				result.append(String.format("\\u%04x", (int) c));
+			else
+				result.append(c);
+		}
+		return result.append('"').toString();
+	}
+
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+			return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,99 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the recompression of archives, shared by archives
+ * recompressed concurrently. The totals grow as archives start, so they
+ * cover the archives started so far.
+ */
+public final class RecompressProgress {
+	private final AtomicLong totalEntries = new AtomicLong();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final AtomicLong doneEntries = new AtomicLong();
+	private final AtomicLong doneBytes = new AtomicLong();
+	private final long start = System.nanoTime();
+	private long sampleBytes;
+	private long sampleNanos = start;
+
+	public long getTotalEntries() {
+		return totalEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes of the entries to recompress.
+	 */
+	public long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	public long getDoneEntries() {
+		return doneEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes of the entries recompressed.
+	 */
+	public long getDoneBytes() {
+		return doneBytes.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes recompressed per second since the
+	 *         previous call, or since this progress was created.
+	 */
+	public synchronized double sampleThroughput() {
+		long now = System.nanoTime();
+		long bytes = doneBytes.get();
+		double result = now == sampleNanos ? 0 : (bytes - sampleBytes) * 1e9 / (now - sampleNanos);
+		sampleBytes = bytes;
+		sampleNanos = now;
+		return result;
+	}
+
+	/**
+	 * Estimates the remaining time from the speed measured since this
+	 * progress was created, in uncompressed bytes, so a large entry weighs
+	 * more than many small ones.
+	 *
+	 * @return the estimated remaining time in nanoseconds, or {@code -1}
+	 *         before any byte is recompressed.
+	 */
+	public long getRemainingNanos() {
+		long bytes = doneBytes.get();
+		if (bytes == 0)
+			return -1;
+		return (long) ((double) (System.nanoTime() - start) / bytes * Math.max(0, totalBytes.get() - bytes));
+	}
+
+	void started(long entries, long bytes) {
+		totalEntries.addAndGet(entries);
+		totalBytes.addAndGet(bytes);
+	}
+
+	void done(long bytes) {
+		doneEntries.incrementAndGet();
+		doneBytes.addAndGet(bytes);
+	}
+}
@@ -0,0 +1,181 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters updated while archives are recompressed. An instance may be
+ * shared by archives recompressed concurrently.
+ */
+public final class RecompressStatistics {
+	private final AtomicLong deflatedEntries = new AtomicLong();
+	private final AtomicLong deflatedBytes = new AtomicLong();
+	private final AtomicLong deflateNanos = new AtomicLong();
+	private final AtomicLong iterations = new AtomicLong();
+	private final AtomicLong screenedEntries = new AtomicLong();
+	private final AtomicLong screenedBytes = new AtomicLong();
+	private final AtomicLong screenNanos = new AtomicLong();
+	private final AtomicLong deduplicatedEntries = new AtomicLong();
+	private final AtomicLong deduplicatedBytes = new AtomicLong();
+	private final AtomicLong referencedEntries = new AtomicLong();
+	private final AtomicLong referencedBytes = new AtomicLong();
+
+	/**
+	 * @return the number of entries compressed with Zopfli.
+	 */
+	public long getDeflatedEntries() {
+		return deflatedEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes compressed with Zopfli.
+	 */
+	public long getDeflatedBytes() {
+		return deflatedBytes.get();
+	}
+
+	/**
+	 * @return the time spent in Zopfli, in nanoseconds.
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos.get();
+	}
+
+	/**
+	 * @return the Zopfli iterations run on all entries.
+	 */
+	public long getIterations() {
+		return iterations.get();
+	}
+
+	/**
+	 * @return the average number of Zopfli iterations run per entry.
+	 */
+	public double getAverageIterations() {
+		long entries = deflatedEntries.get();
+		return entries == 0 ? 0 : (double) iterations.get() / entries;
+	}
+
+	/**
+	 * @return the number of entries found incompressible by the pre-screen.
+	 */
+	public long getScreenedEntries() {
+		return screenedEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes found incompressible by the pre-screen.
+	 */
+	public long getScreenedBytes() {
+		return screenedBytes.get();
+	}
+
+	/**
+	 * @return the time spent in the pre-screen, in nanoseconds.
+	 */
+	public long getScreenNanos() {
+		return screenNanos.get();
+	}
+
+	/**
+	 * Estimates the time Zopfli would have spent on the entries found
+	 * incompressible, from its average speed on the other entries, minus the
+	 * time of the pre-screen.
+	 *
+	 * @return the estimated time saved by the pre-screen, in nanoseconds.
+	 */
+	public long getScreenSavedNanos() {
+		long bytes = deflatedBytes.get();
+		if (bytes == 0)
+			return 0;
+		return (long) ((double) deflateNanos.get() / bytes * screenedBytes.get()) - screenNanos.get();
+	}
+
+	/**
+	 * @return the number of entries that reused the compression of an
+	 *         identical entry.
+	 */
+	public long getDeduplicatedEntries() {
+		return deduplicatedEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes of the entries that reused the
+	 *         compression of an identical entry.
+	 */
+	public long getDeduplicatedBytes() {
+		return deduplicatedBytes.get();
+	}
+
+	/**
+	 * @return the estimated time saved by reusing the compression of
+	 *         identical entries, from the average speed of Zopfli, in
+	 *         nanoseconds.
+	 */
+	public long getDeduplicationSavedNanos() {
+		long bytes = deflatedBytes.get();
+		if (bytes == 0)
+			return 0;
+		return (long) ((double) deflateNanos.get() / bytes * deduplicatedBytes.get());
+	}
+
+	/**
+	 * @return the number of entries copied from a reference archive.
+	 */
+	public long getReferencedEntries() {
+		return referencedEntries.get();
+	}
+
+	/**
+	 * @return the uncompressed bytes of the entries copied from a reference
+	 *         archive.
+	 */
+	public long getReferencedBytes() {
+		return referencedBytes.get();
+	}
+
+	void deflated(long bytes, long nanos, int iterations) {
+		deflatedEntries.incrementAndGet();
+		deflatedBytes.addAndGet(bytes);
+		deflateNanos.addAndGet(nanos);
+		this.iterations.addAndGet(iterations);
+	}
+
+	void screened(boolean incompressible, long bytes, long nanos) {
+		screenNanos.addAndGet(nanos);
+		if (incompressible) {
+			screenedEntries.incrementAndGet();
+			screenedBytes.addAndGet(bytes);
+		}
+	}
+
+	void deduplicated(long bytes) {
+		deduplicatedEntries.incrementAndGet();
+		deduplicatedBytes.addAndGet(bytes);
+	}
+
+	void referenced(long bytes) {
+		referencedEntries.incrementAndGet();
+		referencedBytes.addAndGet(bytes);
+	}
+}
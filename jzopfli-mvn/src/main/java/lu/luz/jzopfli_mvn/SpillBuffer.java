@@ -0,0 +1,191 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Output buffered in memory up to a threshold and in a temporary file beyond
+ * it. The CRC-32 and the size of the data are computed as it is written. The
+ * memory buffer is kept by {@link #reset()}, so one instance can buffer many
+ * entries in turn.
+ */
+final class SpillBuffer extends OutputStream {
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private final int threshold;
+	private final Path directory;
+	private final CRC32 crc = new CRC32();
+	private byte[] buffer;
+	private int count;
+	private long size;
+	private Path file;
+	private OutputStream fileStream;
+
+	/**
+	 * @param threshold
+	 *            the number of bytes kept in memory.
+	 * @param directory
+	 *            the directory of the temporary file, or {@code null} for the
+	 *            default one.
+	 */
+	SpillBuffer(int threshold, Path directory) {
+		this.threshold = threshold;
+		this.directory = directory;
+		buffer = new byte[Math.min(threshold, INITIAL_CAPACITY)];
+	}
+
+	/**
+	 * @return a buffer holding {@code data} in memory, without copying it.
+	 */
+	static SpillBuffer wrap(byte[] data) {
+		SpillBuffer result = new SpillBuffer(0, null);
+		result.buffer = data;
+		result.count = data.length;
+		result.size = data.length;
+		result.crc.update(data);
+		return result;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		crc.update(b, off, len);
+		size += len;
+		if (file == null && count + len > threshold)
+			spill();
+		if (file != null) {
+			fileStream.write(b, off, len);
+			return;
+		}
+		if (count + len > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.min(threshold, Math.max(count + len, 2 * buffer.length)));
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	long size() {
+		return size;
+	}
+
+	long getCrc() {
+		return crc.getValue();
+	}
+
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @return the data, read back from the temporary file if it spilled.
+	 */
+	byte[] toByteArray() throws IOException {
+		if (file == null)
+			return Arrays.copyOf(buffer, count);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Data too large to fit in memory: " + size + " bytes");
+		fileStream.flush();
+		return Files.readAllBytes(file);
+	}
+
+	/**
+	 * @return a view of the data, which must not have spilled.
+	 */
+	ByteBuffer toByteBuffer() {
+		if (file != null)
+			throw new IllegalStateException("Data spilled to " + file);
+		return ByteBuffer.wrap(buffer, 0, count);
+	}
+
+	/**
+	 * @return the temporary file holding the data, which must have spilled.
+	 */
+	Path getFile() throws IOException {
+		if (file == null)
+			throw new IllegalStateException("Data not spilled");
+		fileStream.flush();
+		return file;
+	}
+
+	InputStream openInputStream() throws IOException {
+		if (file == null)
+			return new ByteArrayInputStream(buffer, 0, count);
+		fileStream.flush();
+		return Files.newInputStream(file);
+	}
+
+	void writeTo(OutputStream os) throws IOException {
+		if (file == null) {
+			os.write(buffer, 0, count);
+			return;
+		}
+		fileStream.flush();
+		Files.copy(file, os);
+	}
+
+	/**
+	 * Discards the data, keeping the memory buffer.
+	 */
+	void reset() throws IOException {
+		deleteFile();
+		crc.reset();
+		count = 0;
+		size = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		deleteFile();
+	}
+
+	private void spill() throws IOException {
+		file = directory == null ? Files.createTempFile("jzopfli", ".spill") : Files.createTempFile(directory, "jzopfli", ".spill");
+		fileStream = new BufferedOutputStream(Files.newOutputStream(file), INITIAL_CAPACITY);
+		fileStream.write(buffer, 0, count);
+		count = 0;
+	}
+
+	private void deleteFile() throws IOException {
+		if (file == null)
+			return;
+		try {
+			fileStream.close();
+		} finally {
+			Files.deleteIfExists(file);
+			file = null;
+			fileStream = null;
+		}
+	}
+}
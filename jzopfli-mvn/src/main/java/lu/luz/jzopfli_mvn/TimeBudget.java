@@ -0,0 +1,226 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+/**
+ * Wall-clock time granted to recompression, shared by all archives. The
+ * entries of the archives being processed are {@link #queued(long) queued}
+ * until they are {@link #finished(long) finished}. When an entry is about to
+ * be compressed, the duration of the whole queue is predicted from the speed
+ * measured so far and the number of threads; if it does not fit in the
+ * remaining time, the entry is compressed with fewer iterations, then with
+ * {@link java.util.zip.Deflater} level 9, and finally keeps its original
+ * data. The level is chosen again for every entry, so the entries go back
+ * to a better level once the queue fits.
+ */
+public final class TimeBudget {
+	/** Compression level of an entry, from the best to the cheapest. */
+	public enum Level {
+		FULL, REDUCED, DEFLATE, ORIGINAL
+	}
+
+	/** Assumed Zopfli speed until one has been measured. */
+	private static final double DEFAULT_NANOS_PER_BYTE = 5000;
+	/** Assumed {@link java.util.zip.Deflater} level 9 speed. */
+	private static final double DEFLATE_NANOS_PER_BYTE = 50;
+
+	private final long deadline;
+	private final ZopfliDeflaterOptions reducedOptions;
+	private final double reducedCost;
+	private final int threads;
+	private final List<Degradation> degradations = new ArrayList<Degradation>();
+	private long measuredBytes;
+	private long measuredNanos;
+	private long queuedBytes;
+	private long zopfliSize;
+	private long deflateSize;
+
+	/**
+	 * @param duration
+	 *            the time granted, starting now.
+	 * @param unit
+	 *            the unit of {@code duration}.
+	 * @param reducedOptions
+	 *            the options of the {@link Level#REDUCED} level.
+	 * @param reducedCost
+	 *            the cost of the {@link Level#REDUCED} level relative to a full
+	 *            compression, for example the ratio of the iterations.
+	 * @param threads
+	 *            the number of threads compressing the entries.
+	 */
+	public TimeBudget(long duration, TimeUnit unit, ZopfliDeflaterOptions reducedOptions, double reducedCost, int threads) {
+		this.deadline = System.nanoTime() + unit.toNanos(duration);
+		this.reducedOptions = reducedOptions;
+		this.reducedCost = reducedCost;
+		this.threads = Math.max(1, threads);
+	}
+
+	public ZopfliDeflaterOptions getReducedOptions() {
+		return reducedOptions;
+	}
+
+	/**
+	 * Adds entries to the queue, before they are submitted.
+	 *
+	 * @param size
+	 *            the uncompressed bytes of the entries.
+	 */
+	public synchronized void queued(long size) {
+		queuedBytes += size;
+	}
+
+	/**
+	 * Removes an entry from the queue, once it is compressed or abandoned.
+	 */
+	public synchronized void finished(long size) {
+		queuedBytes = Math.max(0, queuedBytes - size);
+	}
+
+	/**
+	 * @return the best level at which the queue, including an entry of
+	 *         {@code size} uncompressed bytes, is predicted to fit in the
+	 *         remaining time.
+	 */
+	public synchronized Level level(long size) {
+		long remaining = deadline - System.nanoTime();
+		double bytes = (double) Math.max(queuedBytes, size) / threads;
+		double full = bytes * nanosPerByte();
+		if (full <= remaining)
+			return Level.FULL;
+		if (full * reducedCost <= remaining)
+			return Level.REDUCED;
+		if (bytes * DEFLATE_NANOS_PER_BYTE <= remaining)
+			return Level.DEFLATE;
+		return Level.ORIGINAL;
+	}
+
+	/**
+	 * Records the time Zopfli took, to refine the predicted speed.
+	 */
+	synchronized void measured(long size, long nanos) {
+		measuredBytes += size;
+		measuredNanos += nanos;
+	}
+
+	/**
+	 * Records the sizes of a full compression of an entry that was deflated,
+	 * to estimate the size of a full compression of degraded entries without
+	 * compressing them twice.
+	 *
+	 * @param compressedSize
+	 *            the size of the Zopfli output.
+	 * @param deflatedSize
+	 *            the original compressed size of the entry.
+	 */
+	synchronized void calibrate(long compressedSize, long deflatedSize) {
+		zopfliSize += compressedSize;
+		deflateSize += deflatedSize;
+	}
+
+	/**
+	 * Records a degraded entry.
+	 *
+	 * @param reference
+	 *            the original compressed size of the entry if it was
+	 *            deflated, else the size of its {@link java.util.zip.Deflater}
+	 *            level 9 output, or {@code -1} if neither is known.
+	 */
+	synchronized void degraded(String archive, String name, Level level, long size, long reference) {
+		degradations.add(new Degradation(archive, name, level, size, reference));
+	}
+
+	/**
+	 * @return the degraded entries, in the order they were compressed.
+	 */
+	public synchronized List<Degradation> getDegradations() {
+		return new ArrayList<Degradation>(degradations);
+	}
+
+	/**
+	 * @return the estimated size of a full compression of data that a
+	 *         standard deflater compresses to {@code reference} bytes, from
+	 *         the ratio measured on the deflated entries compressed fully.
+	 */
+	public synchronized long estimateFullSize(long reference) {
+		if (deflateSize == 0)
+			return reference;
+		return (long) ((double) zopfliSize / deflateSize * reference);
+	}
+
+	private synchronized double nanosPerByte() {
+		return measuredBytes == 0 ? DEFAULT_NANOS_PER_BYTE : (double) measuredNanos / measuredBytes;
+	}
+
+	/**
+	 * An entry compressed below the {@link Level#FULL} level.
+	 */
+	public final class Degradation {
+		private final String archive;
+		private final String name;
+		private final Level level;
+		private final long size;
+		private final long reference;
+
+		private Degradation(String archive, String name, Level level, long size, long reference) {
+			this.archive = archive;
+			this.name = name;
+			this.level = level;
+			this.size = size;
+			this.reference = reference;
+		}
+
+		public String getArchive() {
+			return archive;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		/**
+		 * @return the compressed size written.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the estimated bytes lost compared with a full compression,
+		 *         0 if it cannot be estimated.
+		 */
+		public long getLoss() {
+			if (reference < 0)
+				return 0;
+			return Math.max(0, size - estimateFullSize(reference));
+		}
+	}
+}
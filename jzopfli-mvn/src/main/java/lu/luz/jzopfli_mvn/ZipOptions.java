@@ -21,11 +21,35 @@ package lu.luz.jzopfli_mvn;
  */
 
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 public class ZipOptions {
 	private boolean keepDirectories;
 	private boolean keepExtra;
 	private boolean keepComment;
 	private boolean keepNestedZips;
+	private boolean keepGzipName = true;
+	private boolean keepGzipTime = true;
+	private boolean neverWorse;
+	private boolean largestFirst;
+	private double screenRatio;
+	private int screenSampleSize = 64 * 1024;
+	private double convergence;
+	private int spillThreshold = 16 * 1024 * 1024;
+	private Path tempDirectory;
+	private int nestedDepth;
+	private Path reference;
+	private List<EntryRule> rules;
+	private List<DeflaterVariant> variants;
+	private Executor executor;
+	private MemoryBudget memoryBudget;
+	private TimeBudget timeBudget;
+	private EntryCache cache;
+	private RecompressStatistics statistics;
+	private EntryListener listener;
+	private RecompressProgress progress;
 	public ZipOptions() {
 	}
 
@@ -67,4 +91,252 @@ public class ZipOptions {
 	public void setKeepNestedZips(boolean keepNestedZips) {
 		this.keepNestedZips = keepNestedZips;
 	}
+
+	/**
+	 * @return {@code true} to keep the original file name stored in the
+	 *         header of a gzip member.
+	 */
+	public boolean isKeepGzipName() {
+		return keepGzipName;
+	}
+
+	public void setKeepGzipName(boolean keepGzipName) {
+		this.keepGzipName = keepGzipName;
+	}
+
+	/**
+	 * @return {@code true} to keep the modification time stored in the
+	 *         header of a gzip member.
+	 */
+	public boolean isKeepGzipTime() {
+		return keepGzipTime;
+	}
+
+	public void setKeepGzipTime(boolean keepGzipTime) {
+		this.keepGzipTime = keepGzipTime;
+	}
+
+	/**
+	 * @return {@code true} if entries that Zopfli cannot make smaller keep
+	 *         their original compressed data.
+	 */
+	public boolean isNeverWorse() {
+		return neverWorse;
+	}
+
+	public void setNeverWorse(boolean neverWorse) {
+		this.neverWorse = neverWorse;
+	}
+
+	/**
+	 * @return the ratio of compressed to uncompressed size of a fast
+	 *         {@link java.util.zip.Deflater} trial above which an entry is
+	 *         stored without running Zopfli, or 0 to disable the pre-screen.
+	 */
+	public double getScreenRatio() {
+		return screenRatio;
+	}
+
+	public void setScreenRatio(double screenRatio) {
+		this.screenRatio = screenRatio;
+	}
+
+	/**
+	 * @return the number of bytes of an entry compressed by the pre-screen
+	 *         trial.
+	 */
+	public int getScreenSampleSize() {
+		return screenSampleSize;
+	}
+
+	public void setScreenSampleSize(int screenSampleSize) {
+		this.screenSampleSize = screenSampleSize;
+	}
+
+	/**
+	 * @return an archive already recompressed, whose entries are copied when
+	 *         their name, CRC-32 and size match, or {@code null}.
+	 */
+	public Path getReference() {
+		return reference;
+	}
+
+	public void setReference(Path reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @return the number of levels of nested archives optimized recursively,
+	 *         keeping at each level the smaller of the nested archive stored
+	 *         in a compressed entry, or compressed in a stored entry. With 0,
+	 *         the entries of nested archives are stored, one level deep.
+	 */
+	public int getNestedDepth() {
+		return nestedDepth;
+	}
+
+	public void setNestedDepth(int nestedDepth) {
+		this.nestedDepth = nestedDepth;
+	}
+
+	/**
+	 * @return the number of bytes of an entry, of its compressed data, of a
+	 *         nested archive or of one of its entries, buffered in memory
+	 *         before it spills to a temporary file. A larger entry is
+	 *         compressed from its temporary file one master block at a time,
+	 *         without being pre-screened nor cached; without master blocks,
+	 *         in blocks of this size.
+	 */
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * @return the directory of temporary files, or {@code null} for the
+	 *         default one.
+	 */
+	public Path getTempDirectory() {
+		return tempDirectory;
+	}
+
+	public void setTempDirectory(Path tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * @return the relative size improvement below which the iterations of an
+	 *         entry stop, or 0 to always run the configured iterations, which
+	 *         are then a maximum.
+	 */
+	public double getConvergence() {
+		return convergence;
+	}
+
+	public void setConvergence(double convergence) {
+		this.convergence = convergence;
+	}
+
+	/**
+	 * @return the rules overriding how entries are compressed, the first
+	 *         matching rule applies; or {@code null}.
+	 */
+	public List<EntryRule> getRules() {
+		return rules;
+	}
+
+	public void setRules(List<EntryRule> rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * @return the variants of the deflater options an entry is also
+	 *         compressed with, keeping the smallest output; or {@code null}.
+	 */
+	public List<DeflaterVariant> getVariants() {
+		return variants;
+	}
+
+	public void setVariants(List<DeflaterVariant> variants) {
+		this.variants = variants;
+	}
+
+	/**
+	 * @return {@code true} to submit all entries at once, from the largest to
+	 *         the smallest, so that a {@link LargestFirstExecutor} shared by
+	 *         several archives orders the entries of all of them.
+	 */
+	public boolean isLargestFirst() {
+		return largestFirst;
+	}
+
+	public void setLargestFirst(boolean largestFirst) {
+		this.largestFirst = largestFirst;
+	}
+
+	/**
+	 * @return the executor deflating entries concurrently, or {@code null} to
+	 *         deflate them in the calling thread.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the budget shared with other archives recompressed at the same
+	 *         time, or {@code null} for no limit.
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return the time granted to recompression, shared with other archives,
+	 *         or {@code null} for no limit.
+	 */
+	public TimeBudget getTimeBudget() {
+		return timeBudget;
+	}
+
+	public void setTimeBudget(TimeBudget timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	/**
+	 * @return the cache of compressed entries, or {@code null} to compress
+	 *         every entry.
+	 */
+	public EntryCache getCache() {
+		return cache;
+	}
+
+	public void setCache(EntryCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the counters to update, or {@code null}.
+	 */
+	public RecompressStatistics getStatistics() {
+		return statistics;
+	}
+
+	public void setStatistics(RecompressStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @return the listener receiving the metrics of each entry, or
+	 *         {@code null}.
+	 */
+	public EntryListener getListener() {
+		return listener;
+	}
+
+	public void setListener(EntryListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the progress updated as entries are recompressed, or
+	 *         {@code null}.
+	 */
+	public RecompressProgress getProgress() {
+		return progress;
+	}
+
+	public void setProgress(RecompressProgress progress) {
+		this.progress = progress;
+	}
 }
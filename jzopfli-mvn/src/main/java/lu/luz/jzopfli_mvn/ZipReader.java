@@ -0,0 +1,454 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a ZIP archive and gives access to the raw,
+ * still compressed, data of its entries. Archives up to 2GB are memory
+ * mapped, except on Windows where a mapped file cannot be replaced before
+ * the mapping is garbage collected. An archive may also be read from a
+ * buffer, without a file.
+ */
+final class ZipReader implements Closeable {
+	private static final int LOCSIG = 0x04034b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int ZIP64_ENDSIG = 0x06064b50;
+	private static final int ZIP64_LOCSIG = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int END_SIZE = 22;
+	private static final int MAX_COMMENT = 0xFFFF;
+	private static final int BUFFER_SIZE = 8192;
+	private static final long MAX_U32 = 0xFFFFFFFFL;
+	private static final boolean MAPPED = File.separatorChar == '/';
+
+	private final String name;
+	private final FileChannel channel;
+	private final ByteBuffer map;
+	private final List<Entry> entries;
+	private final Map<String, Entry> byName;
+
+	ZipReader(Path path) throws IOException {
+		this(path, true, MAPPED);
+	}
+
+	/**
+	 * Reads an archive held in memory.
+	 *
+	 * @param name
+	 *            the name of the archive, for messages.
+	 */
+	ZipReader(String name, ByteBuffer data) throws IOException {
+		this.name = name;
+		channel = null;
+		map = data.slice();
+		entries = Collections.unmodifiableList(readCentralDirectory());
+		byName = index(entries);
+	}
+
+	/**
+	 * @param mapped
+	 *            {@code true} to map the archive in memory if it is small
+	 *            enough, instead of reading its entries from the channel.
+	 */
+	ZipReader(Path path, boolean readEntries, boolean mapped) throws IOException {
+		this.name = path.toString();
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			map = mapped && readEntries && size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+			entries = readEntries ? Collections.unmodifiableList(readCentralDirectory()) : Collections.<Entry> emptyList();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		byName = index(entries);
+	}
+
+	/**
+	 * Reads an archive from a buffer, from its temporary file if it spilled.
+	 */
+	static ZipReader open(SpillBuffer buffer, String name) throws IOException {
+		return buffer.isSpilled() ? new ZipReader(buffer.getFile()) : new ZipReader(name, buffer.toByteBuffer());
+	}
+
+	private static Map<String, Entry> index(List<Entry> entries) {
+		Map<String, Entry> result = new HashMap<String, Entry>(entries.size() * 2);
+		for (Entry entry : entries)
+			if (!result.containsKey(entry.name))
+				result.put(entry.name, entry);
+		return result;
+	}
+
+	/**
+	 * @return the path of the archive, or the name it was read under.
+	 */
+	String getName() {
+		return name;
+	}
+
+	List<Entry> entries() {
+		return entries;
+	}
+
+	/**
+	 * @return the first entry named {@code name}, or {@code null}.
+	 */
+	Entry entry(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @return the data of an entry as stored in the archive, compressed with
+	 *         {@link Entry#method}. The buffer is a view of the mapped archive
+	 *         if it is mapped.
+	 */
+	ByteBuffer payload(Entry entry) throws IOException {
+		if (entry.compressedSize > Integer.MAX_VALUE)
+			throw new IllegalStateException("Entry too large to fit in memory: " + entry.name);
+		return read(dataOffset(entry), (int) entry.compressedSize);
+	}
+
+	/**
+	 * @return the data of an entry as stored in the archive. Unless the
+	 *         archive is in memory or mapped, it is read from the channel as
+	 *         it is consumed, so an entry of any size can be read.
+	 */
+	InputStream openRaw(Entry entry) throws IOException {
+		if (channel == null || map != null)
+			return new ByteBufferInputStream(payload(entry));
+		return new ChannelInputStream(channel, dataOffset(entry), entry.compressedSize);
+	}
+
+	/**
+	 * @return the uncompressed content of an entry.
+	 */
+	InputStream open(Entry entry) throws IOException {
+		InputStream is = openRaw(entry);
+		switch (entry.method) {
+		case ZipEntry.STORED:
+			return is;
+		case ZipEntry.DEFLATED:
+			final Inflater inflater = new Inflater(true);
+			return new InflaterInputStream(is, inflater, BUFFER_SIZE) {
+				private boolean eof;
+
+				@Override
+				protected void fill() throws IOException {
+					// like ZipFile, feeds a dummy byte at the end of a raw stream
+					if (eof)
+						throw new EOFException("Unexpected end of ZLIB input stream");
+					len = in.read(buf, 0, buf.length);
+					if (len == -1) {
+						buf[0] = 0;
+						len = 1;
+						eof = true;
+					}
+					inf.setInput(buf, 0, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inflater.end();
+				}
+			};
+		default:
+			throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+		}
+	}
+
+	/**
+	 * Copies the data of an entry as stored in the archive to {@code target}
+	 * without going through the heap when the platform allows it.
+	 */
+	void transferTo(Entry entry, WritableByteChannel target) throws IOException {
+		if (channel == null) {
+			ByteBuffer payload = payload(entry);
+			while (payload.hasRemaining())
+				target.write(payload);
+			return;
+		}
+		long position = dataOffset(entry);
+		long remaining = entry.compressedSize;
+		while (remaining > 0) {
+			long transferred = channel.transferTo(position, remaining, target);
+			if (transferred <= 0)
+				throw new EOFException(entry.name);
+			position += transferred;
+			remaining -= transferred;
+		}
+	}
+
+	/**
+	 * @return the offset of the data of {@code entry}, after its local header.
+	 */
+	long dataOffset(Entry entry) throws IOException {
+		ByteBuffer loc = read(entry.localHeaderOffset, 30);
+		if (loc.getInt(0) != LOCSIG)
+			throw new ZipException("Invalid local header: " + entry.name);
+		return entry.localHeaderOffset + 30 + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	/**
+	 * Reads the end of central directory record of an archive, with its
+	 * comment, without reading the rest of the archive.
+	 */
+	static byte[] readEnd(Path path) throws IOException {
+		try (ZipReader reader = new ZipReader(path, false, false)) {
+			long length = reader.channel.size();
+			int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+			ByteBuffer tail = reader.read(length - tailLength, tailLength);
+			int end = findEnd(tail);
+			return bytes(tail, end, tailLength - end);
+		}
+	}
+
+	private static int findEnd(ByteBuffer tail) throws ZipException {
+		for (int i = tail.limit() - END_SIZE; i >= 0; i--)
+			if (tail.getInt(i) == ENDSIG)
+				return i;
+		throw new ZipException("End of central directory not found");
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		long length = channel == null ? map.capacity() : channel.size();
+		int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+		ByteBuffer tail = read(length - tailLength, tailLength);
+		int end = findEnd(tail);
+
+		long count = tail.getShort(end + 10) & 0xffff;
+		long cenSize = tail.getInt(end + 12) & MAX_U32;
+		long cenOffset = tail.getInt(end + 16) & MAX_U32;
+		long endPosition = length - tailLength + end;
+		if (count == 0xFFFF || cenSize == MAX_U32 || cenOffset == MAX_U32) {
+			ByteBuffer locator = read(endPosition - 20, 20);
+			if (locator.getInt(0) == ZIP64_LOCSIG) {
+				ByteBuffer zip64End = read(locator.getLong(8), 56);
+				if (zip64End.getInt(0) != ZIP64_ENDSIG)
+					throw new ZipException("Invalid ZIP64 end of central directory");
+				count = zip64End.getLong(32);
+				cenSize = zip64End.getLong(40);
+				cenOffset = zip64End.getLong(48);
+			}
+		}
+		if (cenSize > Integer.MAX_VALUE)
+			throw new ZipException("Central directory too large");
+
+		ByteBuffer cen = read(cenOffset, (int) cenSize);
+		List<Entry> result = new ArrayList<Entry>((int) Math.min(count, 1 << 16));
+		int position = 0;
+		while (position + 46 <= cen.limit() && cen.getInt(position) == CENSIG) {
+			Entry entry = new Entry();
+			entry.flag = cen.getShort(position + 8) & 0xffff;
+			entry.method = cen.getShort(position + 10) & 0xffff;
+			entry.dosTime = cen.getInt(position + 12) & MAX_U32;
+			entry.crc = cen.getInt(position + 16) & MAX_U32;
+			entry.compressedSize = cen.getInt(position + 20) & MAX_U32;
+			entry.size = cen.getInt(position + 24) & MAX_U32;
+			int nameLength = cen.getShort(position + 28) & 0xffff;
+			int extraLength = cen.getShort(position + 30) & 0xffff;
+			int commentLength = cen.getShort(position + 32) & 0xffff;
+			entry.localHeaderOffset = cen.getInt(position + 42) & MAX_U32;
+			int offset = position + 46;
+			entry.name = string(cen, offset, nameLength);
+			entry.extra = bytes(cen, offset + nameLength, extraLength);
+			entry.comment = commentLength == 0 ? null : string(cen, offset + nameLength + extraLength, commentLength);
+			readZip64Extra(entry);
+			result.add(entry);
+			position = offset + nameLength + extraLength + commentLength;
+		}
+		if (result.size() != count)
+			throw new ZipException("Invalid central directory: " + result.size() + " of " + count + " entries");
+		return result;
+	}
+
+	private static void readZip64Extra(Entry entry) {
+		ByteBuffer extra = ByteBuffer.wrap(entry.extra).order(ByteOrder.LITTLE_ENDIAN);
+		int position = 0;
+		while (position + 4 <= entry.extra.length) {
+			int id = extra.getShort(position) & 0xffff;
+			int length = extra.getShort(position + 2) & 0xffff;
+			int offset = position + 4;
+			if (id == ZIP64_EXTRA) {
+				if (entry.size == MAX_U32 && offset + 8 <= entry.extra.length) {
+					entry.size = extra.getLong(offset);
+					offset += 8;
+				}
+				if (entry.compressedSize == MAX_U32 && offset + 8 <= entry.extra.length) {
+					entry.compressedSize = extra.getLong(offset);
+					offset += 8;
+				}
+				if (entry.localHeaderOffset == MAX_U32 && offset + 8 <= entry.extra.length)
+					entry.localHeaderOffset = extra.getLong(offset);
+				return;
+			}
+			position += 4 + length;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		if (map != null) {
+			if (position < 0 || position + length > map.capacity())
+				throw new EOFException();
+			ByteBuffer view = map.duplicate();
+			view.position((int) position);
+			view.limit((int) position + length);
+			return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String string(ByteBuffer buffer, int offset, int length) {
+		return new String(bytes(buffer, offset, length), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++)
+			result[i] = buffer.get(offset + i);
+		return result;
+	}
+
+	/**
+	 * Central directory record of an entry.
+	 */
+	static final class Entry {
+		String name;
+		int flag;
+		int method;
+		long dosTime;
+		long crc;
+		long compressedSize;
+		long size;
+		long localHeaderOffset;
+		byte[] extra;
+		String comment;
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+
+	/**
+	 * Reads a range of a channel with positional reads, leaving the channel
+	 * open and its position unchanged.
+	 */
+	private static final class ChannelInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		private ChannelInputStream(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining == 0)
+				return -1;
+			int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (read < 0)
+				throw new EOFException();
+			position += read;
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int read = Math.min(len, buffer.remaining());
+			buffer.get(b, off, read);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package lu.luz.jzopfli_mvn;
+
+/*
+ * #%L
+ * JZopfli Maven
+ * %%
+ * Copyright (C) 2015 Luc Cappellaro
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal ZIP writer for entries whose payload is already compressed.
+ * CRC and sizes are known up front, so they are written in the local header
+ * and no data descriptor follows the entry data. ZIP64 records are written
+ * when sizes, offsets or the number of entries do not fit the original
+ * format, as {@link java.util.zip.ZipOutputStream} does.
+ */
+final class ZipWriter {
+	private static final int LOCSIG = 0x04034b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int ZIP64_ENDSIG = 0x06064b50;
+	private static final int ZIP64_LOCSIG = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int ZIP64_VERSION = 45;
+	private static final int FLAG_UTF8 = 0x800;
+	private static final long MAX_U32 = 0xFFFFFFFFL;
+	private static final int MAX_U16 = 0xFFFF;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer=ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteArrayOutputStream central=new ByteArrayOutputStream();
+	private long written;
+	private int count;
+
+	ZipWriter(WritableByteChannel channel){
+		this.channel=channel;
+	}
+
+	/**
+	 * Writes an entry.
+	 *
+	 * @param name
+	 *            name of the entry.
+	 * @param dosTime
+	 *            last modification time, in MS-DOS format.
+	 * @param extra
+	 *            extra field, may be {@code null}.
+	 * @param comment
+	 *            comment, may be {@code null}.
+	 * @param method
+	 *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+	 * @param crc
+	 *            CRC-32 of the uncompressed data.
+	 * @param size
+	 *            size of the uncompressed data.
+	 * @param data
+	 *            the payload, already compressed with {@code method}.
+	 */
+	void write(String name, long dosTime, byte[] extra, String comment, int method, long crc, long size, ByteBuffer data) throws IOException{
+		writeHeaders(name, dosTime, extra, comment, method, crc, data.remaining(), size);
+		written+=data.remaining();
+		if(data.remaining()<=buffer.remaining())
+			buffer.put(data);
+		else{
+			flush();
+			while(data.hasRemaining())
+				channel.write(data);
+		}
+	}
+
+	/**
+	 * Writes an entry whose payload may have spilled to a temporary file.
+	 */
+	void write(String name, long dosTime, byte[] extra, String comment, int method, long crc, long size, SpillBuffer data) throws IOException{
+		if(!data.isSpilled()){
+			write(name, dosTime, extra, comment, method, crc, size, data.toByteBuffer());
+			return;
+		}
+		writeHeaders(name, dosTime, extra, comment, method, crc, data.size(), size);
+		flush();
+		data.writeTo(Channels.newOutputStream(channel));
+		written+=data.size();
+	}
+
+	/**
+	 * Copies an entry of another archive without decompressing it.
+	 */
+	void transfer(String name, long dosTime, byte[] extra, String comment, ZipReader reader, ZipReader.Entry source) throws IOException{
+		writeHeaders(name, dosTime, extra, comment, source.method, source.crc, source.compressedSize, source.size);
+		flush();
+		reader.transferTo(source, channel);
+		written+=source.compressedSize;
+	}
+
+	/**
+	 * Writes the central directory and the end record, without closing the
+	 * underlying channel.
+	 */
+	void finish(String comment) throws IOException{
+		byte[] bytes=comment==null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+		long cenOffset=written;
+		long cenSize=central.size();
+		put(central.toByteArray());
+		if(count>=MAX_U16 || cenOffset>=MAX_U32 || cenSize>=MAX_U32){
+			put(ZIP64_ENDSIG);
+			putLong(44); //size of the remaining record
+			putShort(ZIP64_VERSION);
+			putShort(ZIP64_VERSION);
+			put(0); //number of this disk
+			put(0); //disk with the central directory
+			putLong(count);
+			putLong(count);
+			putLong(cenSize);
+			putLong(cenOffset);
+			put(ZIP64_LOCSIG);
+			put(0); //disk with the ZIP64 end record
+			putLong(cenOffset+cenSize);
+			put(1); //total number of disks
+		}
+		put(ENDSIG);
+		putShort(0); //number of this disk
+		putShort(0); //disk with the central directory
+		putShort(Math.min(count, MAX_U16));
+		putShort(Math.min(count, MAX_U16));
+		put(Math.min(cenSize, MAX_U32));
+		put(Math.min(cenOffset, MAX_U32));
+		putShort(bytes.length);
+		put(bytes);
+		flush();
+	}
+
+	private void writeHeaders(String name, long dosTime, byte[] extra, String comment, int method, long crc, long compressedSize, long size) throws IOException{
+		byte[] nameBytes=name.getBytes(StandardCharsets.UTF_8);
+		byte[] extraBytes=withoutZip64(extra);
+		byte[] commentBytes=comment==null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+		boolean zip64Sizes=size>=MAX_U32 || compressedSize>=MAX_U32;
+		boolean zip64Offset=written>=MAX_U32;
+		int version=zip64Sizes || zip64Offset ? ZIP64_VERSION : method==ZipEntry.STORED ? 10 : 20;
+
+		ByteArrayOutputStream localExtra=new ByteArrayOutputStream();
+		ByteArrayOutputStream centralExtra=new ByteArrayOutputStream();
+		if(zip64Sizes){
+			writeShort(localExtra, ZIP64_EXTRA);
+			writeShort(localExtra, 16);
+			writeLong(localExtra, size);
+			writeLong(localExtra, compressedSize);
+		}
+		if(zip64Sizes || zip64Offset){
+			writeShort(centralExtra, ZIP64_EXTRA);
+			writeShort(centralExtra, (zip64Sizes ? 16 : 0)+(zip64Offset ? 8 : 0));
+			if(zip64Sizes){
+				writeLong(centralExtra, size);
+				writeLong(centralExtra, compressedSize);
+			}
+			if(zip64Offset)
+				writeLong(centralExtra, written);
+		}
+		localExtra.write(extraBytes);
+		centralExtra.write(extraBytes);
+		if(centralExtra.size()>MAX_U16)
+			throw new ZipException("Extra field too long: "+name);
+
+		writeInt(central, CENSIG);
+		writeShort(central, version);
+		writeShort(central, version);
+		writeShort(central, FLAG_UTF8);
+		writeShort(central, method);
+		writeInt(central, dosTime);
+		writeInt(central, crc);
+		writeInt(central, zip64Sizes ? MAX_U32 : compressedSize);
+		writeInt(central, zip64Sizes ? MAX_U32 : size);
+		writeShort(central, nameBytes.length);
+		writeShort(central, centralExtra.size());
+		writeShort(central, commentBytes.length);
+		writeShort(central, 0); //disk number start
+		writeShort(central, 0); //internal attributes
+		writeInt(central, 0); //external attributes
+		writeInt(central, zip64Offset ? MAX_U32 : written);
+		central.write(nameBytes);
+		centralExtra.writeTo(central);
+		central.write(commentBytes);
+
+		put(LOCSIG);
+		putShort(version);
+		putShort(FLAG_UTF8);
+		putShort(method);
+		put(dosTime);
+		put(crc);
+		put(zip64Sizes ? MAX_U32 : compressedSize);
+		put(zip64Sizes ? MAX_U32 : size);
+		putShort(nameBytes.length);
+		putShort(localExtra.size());
+		put(nameBytes);
+		put(localExtra.toByteArray());
+		written+=30+nameBytes.length+localExtra.size();
+		count++;
+	}
+
+	/**
+	 * @return {@code extra} without its ZIP64 field, whose values describe
+	 *         the archive it was read from.
+	 */
+	private static byte[] withoutZip64(byte[] extra){
+		if(extra==null)
+			return new byte[0];
+		ByteArrayOutputStream result=new ByteArrayOutputStream(extra.length);
+		int position=0;
+		while(position+4<=extra.length){
+			int id=(extra[position] & 0xff) | (extra[position+1] & 0xff) << 8;
+			int length=(extra[position+2] & 0xff) | (extra[position+3] & 0xff) << 8;
+			int end=Math.min(extra.length, position+4+length);
+			if(id!=ZIP64_EXTRA)
+				result.write(extra, position, end-position);
+			position=end;
+		}
+		if(position<extra.length)
+			result.write(extra, position, extra.length-position);
+		return result.toByteArray();
+	}
+
+	private void put(long v) throws IOException{
+		if(buffer.remaining()<4)
+			flush();
+		buffer.putInt((int)v);
+	}
+
+	private void putLong(long v) throws IOException{
+		if(buffer.remaining()<8)
+			flush();
+		buffer.putLong(v);
+	}
+
+	private void putShort(int v) throws IOException{
+		if(buffer.remaining()<2)
+			flush();
+		buffer.putShort((short)v);
+	}
+
+	private void put(byte[] bytes) throws IOException{
+		int offset=0;
+		while(offset<bytes.length){
+			if(!buffer.hasRemaining())
+				flush();
+			int length=Math.min(buffer.remaining(), bytes.length-offset);
+			buffer.put(bytes, offset, length);
+			offset+=length;
+		}
+	}
+
+	private void flush() throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private static void writeShort(ByteArrayOutputStream os, int v){
+		os.write(v & 0xff);
+		os.write((v >>> 8) & 0xff);
+	}
+
+	private static void writeLong(ByteArrayOutputStream os, long v){
+		writeInt(os, v);
+		writeInt(os, v >>> 32);
+	}
+
+	private static void writeInt(ByteArrayOutputStream os, long v){
+		os.write((int)(v & 0xff));
+		os.write((int)((v >>> 8) & 0xff));
+		os.write((int)((v >>> 16) & 0xff));
+		os.write((int)((v >>> 24) & 0xff));
+	}
+}
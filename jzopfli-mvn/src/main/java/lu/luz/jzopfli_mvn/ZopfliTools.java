@@ -21,13 +21,44 @@ package lu.luz.jzopfli_mvn;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -38,7 +69,10 @@ import lu.luz.jzopfli_stream.ZopfliOutputStream;
 
 public final class ZopfliTools {
 	private static final int BUFFER_SIZE = 8192;
+	private static final int SCREEN_CHUNKS = 4;
 	private static final String[] EXTENSIONS = {".zip", ".jar", ".ejb", ".war", ".ear", ".rar", ".par"};
+	/** How master blocks are compressed, part of the cache key. */
+	private static final String MASTER_BLOCKS = "masterBlocks=independent";
 
 	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
 		@Override protected byte[] initialValue() {
@@ -52,43 +86,955 @@ public final class ZopfliTools {
 		recompress(zip, os, zipOpts, new ZopfliDeflaterOptions());
 	}
 
+	/**
+	 * Recompresses every entry of {@code zip} into {@code os}. The archive is
+	 * read again from its file, see
+	 * {@link #recompress(Path, WritableByteChannel, ZipOptions, ZopfliDeflaterOptions)}.
+	 */
 	public static void recompress(ZipFile zip, OutputStream os, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
-		ZopfliOutputStream zos=new ZopfliOutputStream(os, deflateOpts);
-
-		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();){
-			ZipEntry inEntry=e.nextElement();
-			String inName=inEntry.getName();
-			if(!zipOpts.isKeepDirectories() && inName.endsWith("/"))
-				continue;
-			InputStream zis = zip.getInputStream(inEntry);
-			ZipEntry outEntry=new ZipEntry(inName);
-			outEntry.setTime(inEntry.getTime());
-			// outEntry.setSize(inEntry.getSize());
-			// outEntry.setCrc(inEntry.getCrc());
-
-			if(zipOpts.isKeepExtra())
-				outEntry.setExtra(inEntry.getExtra());
-
-			if(zipOpts.isKeepComment()) //Comment are unavailable in ZipInputStream (located at the end of a Zip)
-				outEntry.setComment(inEntry.getComment());
-
-			zos.putNextEntry(outEntry);
-			if(!zipOpts.isKeepNestedZips() && isZip(inName))
-				recompressStored(zis, zos);
+		recompress(Paths.get(zip.getName()), Channels.newChannel(os), zipOpts, deflateOpts);
+	}
+
+	/**
+	 * Recompresses every entry of the archive {@code input} into
+	 * {@code output}. If {@link ZipOptions#getExecutor()} is set, entries are
+	 * deflated concurrently and written in their original order, so the
+	 * output is the same as the one of a serial run. If
+	 * {@link ZipOptions#getMemoryBudget()} is set, an entry is only read once
+	 * its footprint fits in the budget. If {@link ZipOptions#getTimeBudget()}
+	 * or {@link ZipOptions#isLargestFirst()} is set, the largest entries are
+	 * compressed first.
+	 */
+	public static void recompress(Path input, WritableByteChannel output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		try(ZipReader reader=new ZipReader(input)){
+			recompress(reader, output, zipOpts, deflateOpts);
+		}
+	}
+
+	/**
+	 * Recompresses the archive read from {@code input} into {@code output},
+	 * neither of which has to be a file, see
+	 * {@link #recompress(Path, WritableByteChannel, ZipOptions, ZopfliDeflaterOptions)}.
+	 * The central directory of an archive is at its end, so {@code input} is
+	 * read entirely before the first entry is compressed: in memory up to
+	 * {@link ZipOptions#getSpillThreshold()} bytes, and in a temporary file
+	 * of {@link ZipOptions#getTempDirectory()} beyond. Entries are written to
+	 * {@code output} as soon as they are compressed.
+	 */
+	public static void recompress(ReadableByteChannel input, WritableByteChannel output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		try(SpillBuffer buffer=new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory())){
+			copy(Channels.newInputStream(input), buffer);
+			try(ZipReader reader=ZipReader.open(buffer, "-")){
+				recompress(reader, output, zipOpts, deflateOpts);
+			}
+		}
+	}
+
+	public static void recompress(InputStream is, OutputStream os, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		recompress(Channels.newChannel(is), Channels.newChannel(os), zipOpts, deflateOpts);
+	}
+
+	/**
+	 * Recompresses an archive, updating {@link ZipOptions#getProgress()} and
+	 * recording a {@link FlightRecorder#ARCHIVE} event.
+	 */
+	private static void recompress(ZipReader reader, WritableByteChannel output, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		int entries=0;
+		long bytes=0;
+		for(ZipReader.Entry inEntry : reader.entries())
+			if(zipOpts.isKeepDirectories() || !inEntry.isDirectory()){
+				entries++;
+				bytes+=inEntry.size;
+			}
+		if(zipOpts.getProgress()!=null)
+			zipOpts.getProgress().started(entries, bytes);
+		Object event=FlightRecorder.ARCHIVE.begin();
+		recompressEntries(reader, output, zipOpts, deflateOpts);
+		FlightRecorder.ARCHIVE.commit(event, reader.getName(), entries, bytes);
+	}
+
+	private static void recompressEntries(final ZipReader reader, WritableByteChannel output, final ZipOptions zipOpts, final ZopfliDeflaterOptions deflateOpts) throws IOException{
+		Executor executor=zipOpts.getExecutor();
+		MemoryBudget budget=zipOpts.getMemoryBudget();
+		int window=executor==null ? 1 : 2*parallelism(executor);
+		ZipWriter writer=new ZipWriter(output);
+		Deque<PendingEntry> pending=new ArrayDeque<>();
+		try(ZipReader reference=openReference(zipOpts)){
+			final Archive archive=new Archive(reader, new Deduplicator(reader.entries()), reference);
+			if(zipOpts.getTimeBudget()!=null || zipOpts.isLargestFirst()){
+				recompressLargestFirst(archive, writer, zipOpts, deflateOpts);
+				writer.finish("jzopfli");
+				return;
+			}
+			try{
+				for(final ZipReader.Entry inEntry : reader.entries()){
+					if(!zipOpts.isKeepDirectories() && inEntry.isDirectory())
+						continue;
+					long footprint=footprint(inEntry, zipOpts);
+					if(budget!=null)
+						while(!budget.tryAcquire(footprint)){
+							if(pending.isEmpty()){
+								acquire(budget, footprint);
+								break;
+							}
+							write(writer, reader, zipOpts, pending.poll());
+						}
+					pending.add(new PendingEntry(submit(executor, newTask(archive, inEntry, zipOpts, deflateOpts, null, 0, null), inEntry.size), footprint));
+					if(pending.size()>=window)
+						write(writer, reader, zipOpts, pending.poll());
+				}
+				while(!pending.isEmpty())
+					write(writer, reader, zipOpts, pending.poll());
+			}finally{
+				for(PendingEntry entry : pending){
+					discard(entry.future);
+					if(budget!=null)
+						budget.release(entry.footprint);
+				}
+			}
+			writer.finish("jzopfli");
+		}
+	}
+
+	/**
+	 * Submits the entries from the largest to the smallest, for the shortest
+	 * overall duration on a pool, then writes them in their original order.
+	 * The compressed entries are kept until all are done, the memory budget
+	 * only bounds the entries being compressed. The entries are queued in
+	 * the time budget until they are done.
+	 */
+	private static void recompressLargestFirst(Archive archive, ZipWriter writer, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		List<ZipReader.Entry> entries=new ArrayList<>();
+		for(ZipReader.Entry inEntry : archive.reader.entries())
+			if(zipOpts.isKeepDirectories() || !inEntry.isDirectory())
+				entries.add(inEntry);
+		List<ZipReader.Entry> order=new ArrayList<>(entries);
+		Collections.sort(order, new Comparator<ZipReader.Entry>() {
+			@Override public int compare(ZipReader.Entry e1, ZipReader.Entry e2) {
+				return Long.compare(e2.size, e1.size);
+			}
+		});
+
+		Set<ZipReader.Entry> queued=null;
+		if(zipOpts.getTimeBudget()!=null){
+			queued=Collections.newSetFromMap(new ConcurrentHashMap<ZipReader.Entry, Boolean>());
+			long bytes=0;
+			for(ZipReader.Entry inEntry : entries){
+				queued.add(inEntry);
+				bytes+=inEntry.size;
+			}
+			zipOpts.getTimeBudget().queued(bytes);
+		}
+		MemoryBudget budget=zipOpts.getMemoryBudget();
+		Map<ZipReader.Entry, Future<CompressedEntry>> futures=new IdentityHashMap<>();
+		try{
+			for(ZipReader.Entry inEntry : order){
+				long footprint=footprint(inEntry, zipOpts);
+				if(budget!=null)
+					acquire(budget, footprint);
+				futures.put(inEntry, submit(zipOpts.getExecutor(), newTask(archive, inEntry, zipOpts, deflateOpts, budget, footprint, queued), inEntry.size));
+			}
+			for(ZipReader.Entry inEntry : entries)
+				write(writer, archive.reader, zipOpts, get(futures.remove(inEntry)));
+		}finally{
+			for(Future<CompressedEntry> future : futures.values())
+				discard(future);
+			for(ZipReader.Entry inEntry : entries)
+				finished(zipOpts, queued, inEntry);
+		}
+	}
+
+	/**
+	 * @param budget
+	 *            the budget to release {@code footprint} to once done, or
+	 *            {@code null} if the caller releases it.
+	 * @param queued
+	 *            the entries queued in the time budget, or {@code null}.
+	 */
+	private static Callable<CompressedEntry> newTask(final Archive archive, final ZipReader.Entry inEntry, final ZipOptions zipOpts, final ZopfliDeflaterOptions deflateOpts,
+			final MemoryBudget budget, final long footprint, final Set<ZipReader.Entry> queued){
+		return new Callable<CompressedEntry>() {
+			@Override public CompressedEntry call() throws IOException {
+				try{
+					return compress(archive, inEntry, zipOpts, deflateOpts);
+				}finally{
+					if(budget!=null)
+						budget.release(footprint);
+					finished(zipOpts, queued, inEntry);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Removes an entry from the queue of the time budget, unless it was
+	 * already removed.
+	 */
+	private static void finished(ZipOptions zipOpts, Set<ZipReader.Entry> queued, ZipReader.Entry inEntry){
+		if(queued!=null && queued.remove(inEntry))
+			zipOpts.getTimeBudget().finished(inEntry.size);
+	}
+
+	/**
+	 * Compresses an entry, reports its metrics to
+	 * {@link ZipOptions#getListener()} and {@link ZipOptions#getProgress()},
+	 * and records a {@link FlightRecorder#ENTRY} event.
+	 */
+	private static CompressedEntry compress(Archive archive, ZipReader.Entry inEntry, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		long start=System.nanoTime();
+		Object event=FlightRecorder.ENTRY.begin();
+		EntryMetrics metrics=new EntryMetrics(archive.reader.getName(), inEntry);
+		CompressedEntry result=compress(archive, inEntry, zipOpts, deflateOpts, metrics);
+		metrics.done(result.isCopied(), result.origin!=null, result.method==ZipEntry.STORED, result.compressedSize(), System.nanoTime()-start);
+		if(zipOpts.getListener()!=null)
+			zipOpts.getListener().entryCompressed(metrics);
+		if(zipOpts.getProgress()!=null)
+			zipOpts.getProgress().done(inEntry.size);
+		FlightRecorder.ENTRY.commit(event, metrics.getArchive(), metrics.getName(), String.valueOf(metrics.getOutcome()), metrics.getSize(),
+				metrics.getCompressedSize(), metrics.getIterations());
+		return result;
+	}
+
+	/**
+	 * Compresses one entry of an archive like {@link #recompress} would,
+	 * without writing it nor sharing its compression with identical entries.
+	 *
+	 * @return what compressing the entry cost and produced.
+	 */
+	static EntryMetrics measure(ZipReader reader, ZipReader.Entry inEntry, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		long start=System.nanoTime();
+		EntryMetrics metrics=new EntryMetrics(reader.getName(), inEntry);
+		Archive archive=new Archive(reader, new Deduplicator(Collections.<ZipReader.Entry>emptyList()), null);
+		try(CompressedEntry result=compress(archive, inEntry, zipOpts, deflateOpts, metrics)){
+			metrics.done(result.isCopied(), result.origin!=null, result.method==ZipEntry.STORED, result.compressedSize(), System.nanoTime()-start);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Compresses an entry. If {@link ZipOptions#isNeverWorse()} is set and
+	 * Zopfli does not produce less data than the entry already has, the
+	 * original data is kept as is. Entries that do not compress are stored.
+	 * The first of {@link ZipOptions#getRules()} matching the entry may
+	 * override this, and {@link ZipOptions#getTimeBudget()} may lower the
+	 * compression level. An entry with the same name, CRC-32 and size in
+	 * {@link ZipOptions#getReference()} is copied from it.
+	 */
+	private static CompressedEntry compress(Archive archive, ZipReader.Entry inEntry, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts, EntryMetrics metrics) throws IOException{
+		EntryRule rule=EntryRule.find(zipOpts.getRules(), inEntry.name, inEntry.size);
+		if(rule!=null){
+			if(rule.getMode()==EntryRule.Mode.SKIP && isPassthrough(inEntry))
+				return CompressedEntry.passthrough(inEntry);
+			if(rule.getDeflaterOptions()!=null)
+				deflateOpts=rule.getDeflaterOptions();
+		}
+		if(archive.reference!=null && (rule==null || rule.getMode()==EntryRule.Mode.ZOPFLI)){
+			ZipReader.Entry referenceEntry=archive.reference.entry(inEntry.name);
+			if(referenceEntry!=null && referenceEntry.crc==inEntry.crc && referenceEntry.size==inEntry.size && isPassthrough(referenceEntry)){
+				if(zipOpts.isNeverWorse() && isPassthrough(inEntry) && inEntry.compressedSize<referenceEntry.compressedSize)
+					return CompressedEntry.passthrough(inEntry);
+				if(zipOpts.getStatistics()!=null)
+					zipOpts.getStatistics().referenced(inEntry.size);
+				return CompressedEntry.referenced(inEntry, archive.reference, referenceEntry);
+			}
+		}
+		TimeBudget timeBudget=zipOpts.getTimeBudget();
+		TimeBudget.Level level=timeBudget==null ? TimeBudget.Level.FULL : timeBudget.level(inEntry.size);
+		if(level==TimeBudget.Level.ORIGINAL){
+			if(isPassthrough(inEntry)){
+				timeBudget.degraded(archive.reader.getName(), inEntry.name, level, inEntry.compressedSize, deflatedSize(inEntry));
+				return CompressedEntry.passthrough(inEntry);
+			}
+			level=TimeBudget.Level.DEFLATE;
+		}
+
+		boolean store=rule!=null && rule.getMode()==EntryRule.Mode.STORE;
+		if(zipOpts.getNestedDepth()>0 && !zipOpts.isKeepNestedZips() && isZip(inEntry.name) && !store && level==TimeBudget.Level.FULL)
+			return compressNested(archive, inEntry, zipOpts, deflateOpts, metrics);
+		return compress(archive, inEntry, zipOpts, deflateOpts, level, store, metrics);
+	}
+
+	private static CompressedEntry compress(Archive archive, ZipReader.Entry inEntry, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts,
+			TimeBudget.Level level, boolean store, EntryMetrics metrics) throws IOException{
+		TimeBudget timeBudget=zipOpts.getTimeBudget();
+		boolean keepOriginal=zipOpts.isNeverWorse() && isPassthrough(inEntry);
+		long start=System.nanoTime();
+		byte[] content=null;
+		SpillBuffer spilled=newBuffer(zipOpts);
+		try(InputStream zis = archive.reader.open(inEntry)){
+			if(!zipOpts.isKeepNestedZips() && isZip(inEntry.name))
+				recompressStored(zis, spilled, zipOpts, Math.max(1, zipOpts.getNestedDepth()));
+			else if(inEntry.size>zipOpts.getSpillThreshold())
+				copy(zis, spilled);
 			else
-				copy(zis, zos);
+				content=read(inEntry.name, inEntry.size, zis);
+			if(spilled.isSpilled()){
+				metrics.inflated(System.nanoTime()-start);
+				CompressedEntry result=compressSpilled(archive.reader, inEntry, spilled, zipOpts, deflateOpts, level, store, keepOriginal, metrics);
+				if(result.buffer==spilled)
+					spilled=null;
+				return result;
+			}
+			if(content==null)
+				content=spilled.toByteArray();
+		}finally{
+			if(spilled!=null)
+				spilled.close();
+		}
+		metrics.inflated(System.nanoTime()-start);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		if(content.length==0 || store)
+			return new CompressedEntry(inEntry, ZipEntry.STORED, crc.getValue(), content.length, content);
+		if(isIncompressible(content, zipOpts)){
+			metrics.screened();
+			if(keepOriginal && inEntry.compressedSize<=content.length)
+				return CompressedEntry.passthrough(inEntry);
+			return new CompressedEntry(inEntry, ZipEntry.STORED, crc.getValue(), content.length, content);
 		}
-		zos.setComment("jzopfli");
+		byte[] deflated;
+		if(level==TimeBudget.Level.DEFLATE){
+			start=System.nanoTime();
+			deflated=deflate9(content);
+			metrics.deflated(EntryMetrics.Outcome.DEFLATER, System.nanoTime()-start, 0);
+		}else
+			deflated=deflate(content, crc.getValue(), archive.dedup, inEntry, zipOpts, level==TimeBudget.Level.REDUCED ? timeBudget.getReducedOptions() : deflateOpts, metrics);
+
+		CompressedEntry result;
+		if(keepOriginal && inEntry.compressedSize<=Math.min(deflated.length, content.length))
+			result=CompressedEntry.passthrough(inEntry);
+		else if(deflated.length>=content.length)
+			result=new CompressedEntry(inEntry, ZipEntry.STORED, crc.getValue(), content.length, content);
+		else
+			result=new CompressedEntry(inEntry, ZipEntry.DEFLATED, crc.getValue(), content.length, deflated);
+
+		if(timeBudget!=null)
+			budgeted(timeBudget, archive.reader, inEntry, level, result.compressedSize(), deflated.length);
+		return result;
+	}
+
+	/**
+	 * Tries two layouts of a nested archive and keeps the smaller one: its
+	 * entries stored and the outer entry compressed, or the nested archive
+	 * recompressed like the outer one, one level less deep, and the outer
+	 * entry stored. The second layout is tried on the pool while the calling
+	 * thread tries the first one.
+	 */
+	private static CompressedEntry compressNested(final Archive archive, final ZipReader.Entry inEntry, final ZipOptions zipOpts, final ZopfliDeflaterOptions deflateOpts,
+			EntryMetrics metrics) throws IOException{
+		final long[] nanos=new long[1];
+		FutureTask<CompressedEntry> recompressed=new DiscardingTask<>(new Callable<CompressedEntry>() {
+			@Override public CompressedEntry call() throws IOException {
+				long start=System.nanoTime();
+				try{
+					return recompressNested(archive.reader, inEntry, zipOpts, deflateOpts);
+				}finally{
+					nanos[0]=System.nanoTime()-start;
+				}
+			}
+		});
+		if(zipOpts.getExecutor()!=null)
+			zipOpts.getExecutor().execute(recompressed);
+		CompressedEntry flattened;
+		try{
+			flattened=compress(archive, inEntry, zipOpts, deflateOpts, TimeBudget.Level.FULL, false, metrics);
+		}catch(IOException | RuntimeException e){
+			discard(recompressed);
+			throw e;
+		}
+		CompressedEntry other;
+		try{
+			recompressed.run();
+			other=get(recompressed);
+		}catch(IOException | RuntimeException e){
+			flattened.close();
+			throw e;
+		}
+		metrics.spent(nanos[0]);
+		if(other!=null && other.compressedSize()<flattened.compressedSize()){
+			flattened.close();
+			return other;
+		}
+		if(other!=null)
+			other.close();
+		return flattened;
+	}
+
+	/**
+	 * @return the nested archive recompressed, to be stored, or {@code null}
+	 *         if it cannot be read as an archive.
+	 */
+	private static CompressedEntry recompressNested(ZipReader reader, ZipReader.Entry inEntry, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		SpillBuffer output=newBuffer(zipOpts);
+		try(InputStream is=reader.open(inEntry)){
+			recompress(Channels.newChannel(is), Channels.newChannel(output), nestedOptions(zipOpts), deflateOpts);
+			CompressedEntry result=new CompressedEntry(inEntry, ZipEntry.STORED, output.getCrc(), output.size(), output);
+			output=null;
+			return result;
+		}catch(ZipException e){
+			return null;
+		}finally{
+			if(output!=null)
+				output.close();
+		}
+	}
+
+	/**
+	 * @return the options of an archive nested one level deeper. Its entries
+	 *         are compressed serially, on the thread compressing the outer
+	 *         entry, and their memory is accounted to the outer entry.
+	 */
+	private static ZipOptions nestedOptions(ZipOptions zipOpts){
+		ZipOptions nested=new ZipOptions(zipOpts.isKeepDirectories(), zipOpts.isKeepExtra(), zipOpts.isKeepComment(), zipOpts.getNestedDepth()<=1);
+		nested.setNeverWorse(zipOpts.isNeverWorse());
+		nested.setScreenRatio(zipOpts.getScreenRatio());
+		nested.setScreenSampleSize(zipOpts.getScreenSampleSize());
+		nested.setConvergence(zipOpts.getConvergence());
+		nested.setSpillThreshold(zipOpts.getSpillThreshold());
+		nested.setTempDirectory(zipOpts.getTempDirectory());
+		nested.setNestedDepth(zipOpts.getNestedDepth()-1);
+		nested.setRules(zipOpts.getRules());
+		nested.setTimeBudget(zipOpts.getTimeBudget());
+		nested.setCache(zipOpts.getCache());
+		nested.setStatistics(zipOpts.getStatistics());
+		return nested;
+	}
+
+	/**
+	 * Compresses an entry whose content spilled to a temporary file: an entry
+	 * or a rewritten nested archive larger than
+	 * {@link ZipOptions#getSpillThreshold()}. Its master blocks are read from
+	 * the file as they are compressed, and the output spills too, so the
+	 * memory used depends on the number of threads and the master block size
+	 * rather than on the size of the entry. It is neither pre-screened,
+	 * cached nor shared with identical entries.
+	 *
+	 * @return the entry, holding {@code content} if it is stored.
+	 */
+	private static CompressedEntry compressSpilled(ZipReader reader, ZipReader.Entry inEntry, SpillBuffer content, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts,
+			TimeBudget.Level level, boolean store, boolean keepOriginal, EntryMetrics metrics) throws IOException{
+		long size=content.size();
+		if(!store){
+			SpillBuffer deflated;
+			if(level==TimeBudget.Level.DEFLATE){
+				long start=System.nanoTime();
+				deflated=newBuffer(zipOpts);
+				try(InputStream is=content.openInputStream()){
+					deflate9(is, deflated);
+				}catch(IOException | RuntimeException e){
+					deflated.close();
+					throw e;
+				}
+				metrics.deflated(EntryMetrics.Outcome.DEFLATER, System.nanoTime()-start, 0);
+			}else
+				deflated=deflate(content, zipOpts, level==TimeBudget.Level.REDUCED ? zipOpts.getTimeBudget().getReducedOptions() : deflateOpts, metrics);
+			boolean kept=false;
+			try{
+				boolean original=keepOriginal && inEntry.compressedSize<=Math.min(deflated.size(), size);
+				if(zipOpts.getTimeBudget()!=null)
+					budgeted(zipOpts.getTimeBudget(), reader, inEntry, level, original ? inEntry.compressedSize : Math.min(deflated.size(), size), deflated.size());
+				if(original)
+					return CompressedEntry.passthrough(inEntry);
+				if(deflated.size()<size){
+					kept=true;
+					return new CompressedEntry(inEntry, ZipEntry.DEFLATED, content.getCrc(), size, deflated);
+				}
+			}finally{
+				if(!kept)
+					deflated.close();
+			}
+		}
+		return new CompressedEntry(inEntry, ZipEntry.STORED, content.getCrc(), size, content);
+	}
+
+	/**
+	 * @return the raw DEFLATE stream of {@link Deflater} level 9.
+	 */
+	private static byte[] deflate9(byte[] content) throws IOException{
+		return deflate9(new ByteArrayInputStream(content));
+	}
+
+	private static byte[] deflate9(InputStream is) throws IOException{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		deflate9(is, bos);
+		return bos.toByteArray();
+	}
+
+	private static void deflate9(InputStream is, OutputStream os) throws IOException{
+		Deflater deflater=new Deflater(Deflater.BEST_COMPRESSION, true);
+		try{
+			DeflaterOutputStream dos=new DeflaterOutputStream(os, deflater, BUFFER_SIZE);
+			copy(is, dos);
+			dos.finish();
+		}finally{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Pre-screens {@code content} with a fast {@link Deflater} trial on up to
+	 * {@link ZipOptions#getScreenSampleSize()} bytes, taken from a few places
+	 * of the content.
+	 *
+	 * @return {@code true} if the trial does not compress the sample below
+	 *         {@link ZipOptions#getScreenRatio()}, so running Zopfli on the
+	 *         content is not worth it.
+	 */
+	private static boolean isIncompressible(byte[] content, ZipOptions zipOpts){
+		if(zipOpts.getScreenRatio()<=0)
+			return false;
+		long start=System.nanoTime();
+		int sampleSize=Math.max(1, zipOpts.getScreenSampleSize());
+		int chunks=content.length<=sampleSize ? 1 : SCREEN_CHUNKS;
+		int chunk=Math.min(content.length, sampleSize/chunks);
+		long compressed=0;
+		Deflater deflater=new Deflater(Deflater.BEST_SPEED, true);
+		try{
+			byte[] buffer=BUFFER.get();
+			for(int i=0; i<chunks; i++){
+				int offset=chunks==1 ? 0 : (int)((long)(content.length-chunk)*i/(chunks-1));
+				deflater.setInput(content, offset, chunk);
+				while(!deflater.needsInput())
+					compressed+=deflater.deflate(buffer);
+			}
+			deflater.finish();
+			while(!deflater.finished())
+				compressed+=deflater.deflate(buffer);
+		}finally{
+			deflater.end();
+		}
+		boolean incompressible=compressed>=zipOpts.getScreenRatio()*chunk*chunks;
+		if(zipOpts.getStatistics()!=null)
+			zipOpts.getStatistics().screened(incompressible, content.length, System.nanoTime()-start);
+		return incompressible;
+	}
+
+	/**
+	 * Records the outcome of an entry compressed at {@code level} of the time
+	 * budget: a full compression calibrates the budget against the original
+	 * compressed size of the entry, a degraded one is compared with it.
+	 *
+	 * @param size
+	 *            the compressed size written.
+	 * @param deflatedSize
+	 *            the size of the DEFLATE output of {@code level}.
+	 */
+	private static void budgeted(TimeBudget timeBudget, ZipReader reader, ZipReader.Entry inEntry, TimeBudget.Level level, long size, long deflatedSize){
+		long original=deflatedSize(inEntry);
+		if(level==TimeBudget.Level.FULL){
+			if(original>=0)
+				timeBudget.calibrate(deflatedSize, original);
+		}else
+			timeBudget.degraded(reader.getName(), inEntry.name, level, size,
+					original>=0 ? original : level==TimeBudget.Level.DEFLATE ? deflatedSize : -1);
+	}
+
+	/**
+	 * @return the original compressed size of an entry, or {@code -1} if it
+	 *         is not deflated.
+	 */
+	private static long deflatedSize(ZipReader.Entry entry){
+		return isPassthrough(entry) && entry.method==ZipEntry.DEFLATED ? entry.compressedSize : -1;
+	}
+
+	/**
+	 * @return {@code true} if the data of {@code entry} can be copied to
+	 *         another archive without being decompressed.
+	 */
+	private static boolean isPassthrough(ZipReader.Entry entry){
+		boolean encrypted=(entry.flag & 1)!=0;
+		return !encrypted && (entry.method==ZipEntry.STORED || entry.method==ZipEntry.DEFLATED);
+	}
+
+	/**
+	 * Compresses {@code content} once for all the identical entries of an
+	 * archive, and once for all builds if {@link ZipOptions#getCache()} is
+	 * set.
+	 */
+	private static byte[] deflate(final byte[] content, final long crc, Deduplicator dedup, ZipReader.Entry inEntry, final ZipOptions zipOpts,
+			final ZopfliDeflaterOptions deflateOpts, final EntryMetrics metrics) throws IOException{
+		final EntryCache cache=zipOpts.getCache();
+		if(cache==null && !dedup.isDuplicate(inEntry))
+			return deflate(content, zipOpts, deflateOpts, metrics);
+		StringBuilder variant=new StringBuilder(MASTER_BLOCKS);
+		if(zipOpts.getConvergence()>0)
+			variant.append("|convergence=").append(zipOpts.getConvergence());
+		if(zipOpts.getVariants()!=null)
+			for(DeflaterVariant v : zipOpts.getVariants())
+				variant.append("|").append(EntryCache.fingerprint(v.apply(deflateOpts)));
+		final String key=EntryCache.key(content, deflateOpts, variant.toString());
+		return dedup.deflate(inEntry, key, new Callable<byte[]>() {
+			@Override public byte[] call() throws IOException {
+				byte[] raw=cache==null ? null : cache.get(key, crc, content.length);
+				if(raw==null){
+					raw=deflate(content, zipOpts, deflateOpts, metrics);
+					if(cache!=null)
+						cache.put(key, raw);
+				}else
+					metrics.deflated(EntryMetrics.Outcome.CACHED, 0, 0);
+				return raw;
+			}
+		}, zipOpts.getStatistics());
+	}
+
+	private static byte[] deflate(byte[] content, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts, EntryMetrics metrics) throws IOException{
+		try(SpillBuffer raw=deflate(SpillBuffer.wrap(content), zipOpts, deflateOpts, metrics)){
+			return raw.toByteArray();
+		}
+	}
+
+	private static SpillBuffer deflate(SpillBuffer content, ZipOptions zipOpts, ZopfliDeflaterOptions deflateOpts, EntryMetrics metrics) throws IOException{
+		long start=System.nanoTime();
+		int iterations=DeflaterOptions.getNumIterations(deflateOpts);
+		SpillBuffer raw;
+		if(zipOpts.getConvergence()>0){
+			int[] spent=new int[1];
+			raw=deflateConverging(content, zipOpts.getConvergence(), iterations, deflateOpts, zipOpts, spent);
+			iterations=spent[0];
+		}else
+			raw=deflate(content, deflateOpts, zipOpts);
+		long nanos=System.nanoTime()-start;
+		if(zipOpts.getStatistics()!=null)
+			zipOpts.getStatistics().deflated(content.size(), nanos, iterations);
+		metrics.deflated(EntryMetrics.Outcome.ZOPFLI, nanos, iterations);
+		TimeBudget timeBudget=zipOpts.getTimeBudget();
+		if(timeBudget!=null && deflateOpts!=timeBudget.getReducedOptions())
+			timeBudget.measured(content.size(), nanos);
+		return raw;
+	}
+
+	/**
+	 * Runs Zopfli with 1, 2, 4... iterations, up to {@code maxIterations},
+	 * until a run improves the size of the previous one by less than
+	 * {@code convergence}. A run cannot be resumed, so each one starts over.
+	 *
+	 * @param spent
+	 *            receives the number of iterations run.
+	 * @return the smallest raw DEFLATE stream.
+	 */
+	private static SpillBuffer deflateConverging(SpillBuffer content, double convergence, int maxIterations, ZopfliDeflaterOptions deflateOpts, ZipOptions zipOpts,
+			int[] spent) throws IOException{
+		SpillBuffer best=null;
+		try{
+			for(int iterations=1; ; iterations=Math.min(maxIterations, 2*iterations)){
+				SpillBuffer raw=deflate(content, DeflaterOptions.withNumIterations(deflateOpts, iterations), zipOpts);
+				spent[0]+=iterations;
+				boolean converged=best!=null && best.size()-raw.size()<convergence*best.size();
+				if(best==null || raw.size()<best.size()){
+					if(best!=null)
+						best.close();
+					best=raw;
+				}else
+					raw.close();
+				if(converged || iterations>=maxIterations){
+					SpillBuffer result=best;
+					best=null;
+					return result;
+				}
+			}
+		}finally{
+			if(best!=null)
+				best.close();
+		}
+	}
+
+	private static void write(ZipWriter writer, ZipReader reader, ZipOptions zipOpts, PendingEntry pending) throws IOException{
+		try{
+			write(writer, reader, zipOpts, get(pending.future));
+		}finally{
+			if(zipOpts.getMemoryBudget()!=null)
+				zipOpts.getMemoryBudget().release(pending.footprint);
+		}
+	}
+
+	private static void write(ZipWriter writer, ZipReader reader, ZipOptions zipOpts, CompressedEntry entry) throws IOException{
+		ZipReader.Entry inEntry=entry.source;
+		byte[] extra=zipOpts.isKeepExtra() ? inEntry.extra : null;
+		String comment=zipOpts.isKeepComment() ? inEntry.comment : null;
+		try{
+			if(entry.buffer!=null)
+				writer.write(inEntry.name, inEntry.dosTime, extra, comment, entry.method, entry.crc, entry.size, entry.buffer);
+			else if(entry.data==null)
+				writer.transfer(inEntry.name, inEntry.dosTime, extra, comment, entry.origin==null ? reader : entry.origin, entry.payload);
+			else
+				writer.write(inEntry.name, inEntry.dosTime, extra, comment, entry.method, entry.crc, entry.size, ByteBuffer.wrap(entry.data));
+		}finally{
+			entry.close();
+		}
+	}
+
+	/**
+	 * Deflates {@code content} with Zopfli and returns the raw DEFLATE stream.
+	 * {@link ZopfliOutputStream} only writes ZIP archives, so the content is
+	 * compressed into a single entry archive whose payload is then extracted.
+	 */
+	static byte[] deflate(byte[] content, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		return deflate(content, 0, content.length, deflateOpts);
+	}
+
+	private static byte[] deflate(byte[] content, int offset, int length, ZopfliDeflaterOptions deflateOpts) throws IOException{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream(length/2+256);
+		ZopfliOutputStream zos=new ZopfliOutputStream(bos, deflateOpts);
+		zos.putNextEntry(new ZipEntry("-"));
+		zos.write(content, offset, length);
 		zos.finish();
+		return payload(bos.toByteArray());
+	}
+
+	/**
+	 * @return the data of the single entry of a ZIP archive written by
+	 *         {@link ZopfliOutputStream}.
+	 */
+	private static byte[] payload(byte[] zip) throws IOException{
+		ByteBuffer buffer=ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+		int end=zip.length-22;
+		if(end<0 || buffer.getInt(end)!=0x06054b50)
+			throw new ZipException("Unexpected Zopfli output");
+		int cen=buffer.getInt(end+16);
+		int compressedSize=buffer.getInt(cen+20);
+		int loc=buffer.getInt(cen+42);
+		int start=loc+30+(buffer.getShort(loc+26) & 0xffff)+(buffer.getShort(loc+28) & 0xffff);
+		return Arrays.copyOfRange(zip, start, start+compressedSize);
+	}
+
+	/**
+	 * Compresses {@code size} bytes read from {@code is} one master block at a
+	 * time, each block independently of the others, and joins them in order
+	 * into {@code os}. The blocks are the same with or without an executor,
+	 * so the output does not depend on it. On {@code executor}, at most one
+	 * block per thread is read and compressed at a time; the calling thread
+	 * compresses the next block itself if no thread has taken it yet, so it
+	 * never waits on a pool busy with other entries.
+	 *
+	 * @param defaultBlockSize
+	 *            the size of the blocks if {@code deflateOpts} has no master
+	 *            blocks, so that no more than that is held in memory.
+	 * @param executor
+	 *            the executor, or {@code null} to compress the blocks on the
+	 *            calling thread.
+	 * @param bound
+	 *            the size of the smallest output of other variants, or
+	 *            {@code null}.
+	 * @return {@code false} if the output became larger than {@code bound}
+	 *         and was abandoned.
+	 */
+	private static boolean deflate(InputStream is, long size, final ZopfliDeflaterOptions deflateOpts, int defaultBlockSize, Executor executor, OutputStream os,
+			AtomicLong bound) throws IOException{
+		int blockSize=DeflaterOptions.getMasterBlockSize(deflateOpts);
+		if(blockSize<=0)
+			blockSize=Math.max(defaultBlockSize, BUFFER_SIZE);
+		if(size<=blockSize){
+			os.write(deflate(readFully(is, (int)size), deflateOpts));
+			return true;
+		}
+
+		int window=executor==null ? 1 : parallelism(executor);
+		DeflateJoiner joiner=new DeflateJoiner(0);
+		Deque<FutureTask<byte[]>> pending=new ArrayDeque<>();
+		long written=0;
+		try{
+			long offset=0;
+			while(offset<size || !pending.isEmpty()){
+				while(offset<size && pending.size()<window){
+					final byte[] data=readFully(is, (int)Math.min(blockSize, size-offset));
+					FutureTask<byte[]> block=new FutureTask<>(new Callable<byte[]>() {
+						@Override public byte[] call() throws IOException {
+							return deflate(data, deflateOpts);
+						}
+					});
+					if(executor!=null)
+						executor.execute(block);
+					pending.add(block);
+					offset+=data.length;
+				}
+				FutureTask<byte[]> block=pending.remove();
+				block.run();
+				joiner.append(get(block), offset==size && pending.isEmpty());
+				written+=joiner.size();
+				joiner.drainTo(os);
+				if(bound!=null && written>bound.get())
+					return false;
+			}
+		}finally{
+			for(FutureTask<byte[]> block : pending)
+				block.cancel(true);
+		}
+		return true;
+	}
+
+	/**
+	 * Compresses {@code content} with {@code deflateOpts} and, if
+	 * {@link ZipOptions#getVariants()} is set, with each variant applied to
+	 * {@code deflateOpts}, and returns the smallest raw DEFLATE stream. The
+	 * variants are compressed concurrently on the executor, the calling
+	 * thread compressing the ones no thread has taken yet. A variant is
+	 * compressed one master block at a time and abandoned as soon as its
+	 * output is larger than the one of a variant that has finished. On a tie,
+	 * the first of {@code deflateOpts} and the variants wins, so the output
+	 * does not depend on the scheduling.
+	 */
+	private static SpillBuffer deflate(final SpillBuffer content, ZopfliDeflaterOptions deflateOpts, final ZipOptions zipOpts) throws IOException{
+		List<DeflaterVariant> variants=zipOpts.getVariants();
+		Executor executor=zipOpts.getExecutor();
+		if(variants==null || variants.isEmpty())
+			return deflateBounded(content, deflateOpts, zipOpts, executor, null);
+
+		final AtomicLong bound=new AtomicLong(Long.MAX_VALUE);
+		List<FutureTask<SpillBuffer>> trials=new ArrayList<>();
+		SpillBuffer best=null;
+		try{
+			for(int i=-1; i<variants.size(); i++){
+				final ZopfliDeflaterOptions opts=i<0 ? deflateOpts : variants.get(i).apply(deflateOpts);
+				FutureTask<SpillBuffer> trial=new DiscardingTask<>(new Callable<SpillBuffer>() {
+					@Override public SpillBuffer call() throws IOException {
+						return deflateBounded(content, opts, zipOpts, null, bound);
+					}
+				});
+				if(executor!=null)
+					executor.execute(trial);
+				trials.add(trial);
+			}
+			for(int i=0; i<trials.size(); i++){
+				FutureTask<SpillBuffer> trial=trials.set(i, null);
+				trial.run();
+				SpillBuffer raw=get(trial);
+				if(raw==null)
+					continue;
+				if(best==null || raw.size()<best.size()){
+					if(best!=null)
+						best.close();
+					best=raw;
+				}else
+					raw.close();
+			}
+			SpillBuffer result=best;
+			best=null;
+			return result;
+		}finally{
+			if(best!=null)
+				best.close();
+			for(FutureTask<SpillBuffer> trial : trials)
+				if(trial!=null)
+					discard(trial);
+		}
+	}
+
+	/**
+	 * Compresses {@code content} one master block at a time.
+	 *
+	 * @param bound
+	 *            the size of the smallest output of the other variants,
+	 *            lowered when this one finishes smaller, or {@code null}.
+	 * @return the raw DEFLATE stream, or {@code null} if it became larger
+	 *         than {@code bound}.
+	 */
+	private static SpillBuffer deflateBounded(SpillBuffer content, ZopfliDeflaterOptions deflateOpts, ZipOptions zipOpts, Executor executor, AtomicLong bound)
+			throws IOException{
+		SpillBuffer raw=newBuffer(zipOpts);
+		boolean kept=false;
+		try(InputStream is=content.openInputStream()){
+			if(!deflate(is, content.size(), deflateOpts, zipOpts.getSpillThreshold(), executor, raw, bound))
+				return null;
+			if(bound!=null){
+				for(long current=bound.get(); raw.size()<current; current=bound.get())
+					if(bound.compareAndSet(current, raw.size()))
+						break;
+				if(raw.size()>bound.get())
+					return null;
+			}
+			kept=true;
+			return raw;
+		}finally{
+			if(!kept)
+				raw.close();
+		}
+	}
+
+	/**
+	 * @param size
+	 *            the uncompressed size of the entry, which a
+	 *            {@link LargestFirstExecutor} runs the largest first.
+	 */
+	private static <T> Future<T> submit(Executor executor, Callable<T> task, long size){
+		FutureTask<T> future=new LargestFirstExecutor.EntryTask<>(task, size);
+		if(executor==null)
+			future.run();
+		else
+			executor.execute(future);
+		return future;
+	}
+
+	static <T> T get(Future<T> future) throws IOException{
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}catch(ExecutionException e){
+			Throwable cause=e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Estimates the heap needed to recompress an entry: its content and the
+	 * Zopfli output, both of which spill to temporary files beyond
+	 * {@link ZipOptions#getSpillThreshold()}.
+	 */
+	private static long footprint(ZipReader.Entry entry, ZipOptions zipOpts){
+		return 2*Math.min(entry.size, zipOpts.getSpillThreshold())+BUFFER_SIZE;
+	}
+
+	private static SpillBuffer newBuffer(ZipOptions zipOpts){
+		return new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory());
+	}
+
+	/**
+	 * Cancels a task, closing its result if it is already done. A
+	 * {@link DiscardingTask} closes its result itself if it was running.
+	 */
+	private static void discard(Future<? extends Closeable> future){
+		if(future.cancel(true))
+			return;
+		try{
+			Closeable result=get(future);
+			if(result!=null)
+				result.close();
+		}catch(IOException | RuntimeException e){
+			// the task failed, so it has no result to close
+		}
+	}
+
+	private static void acquire(MemoryBudget budget, long bytes) throws IOException{
+		try{
+			budget.acquire(bytes);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	static int parallelism(Executor executor){
+		if(executor instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+		if(executor instanceof ForkJoinPool)
+			return ((ForkJoinPool)executor).getParallelism();
+		return Runtime.getRuntime().availableProcessors();
 	}
 
-	private static byte[] read(ZipEntry entry, InputStream zis) throws IOException{
+	private static byte[] read(String name, long size, InputStream zis) throws IOException{
 		byte[] result;
-		if(entry.getSize()>Integer.MAX_VALUE)
-			throw new IllegalStateException("Entry too large to fit in memory: "+entry);
+		if(size>Integer.MAX_VALUE)
+			throw new IllegalStateException("Entry too large to fit in memory: "+name);
 		int read;
-		if(entry.getSize()!=-1){
-			result=new byte[(int)entry.getSize()];
+		if(size!=-1){
+			result=new byte[(int)size];
 			int offset = 0;
 			while ((read = zis.read(result, offset, result.length - offset)) > 0)
 				offset += read;
@@ -100,6 +1046,17 @@ public final class ZopfliTools {
 		return result;
 	}
 
+	private static byte[] readFully(InputStream is, int length) throws IOException{
+		byte[] result=new byte[length];
+		int offset=0;
+		int read;
+		while(offset<length && (read=is.read(result, offset, length-offset))>0)
+			offset+=read;
+		if(offset<length)
+			throw new ZipException("Unexpected end of entry data");
+		return result;
+	}
+
 	private static void copy(InputStream is, OutputStream os) throws IOException{
 		int read;
 		byte[] buffer = BUFFER.get();
@@ -107,7 +1064,7 @@ public final class ZopfliTools {
 			os.write(buffer, 0, read);
 	}
 
-	private static boolean isZip(String name){
+	static boolean isZip(String name){
 		String lowerCase=name.toLowerCase();
 		for(String extension : EXTENSIONS)
 			if(lowerCase.endsWith(extension))
@@ -115,36 +1072,154 @@ public final class ZopfliTools {
 		return false;
 	}
 
-	private static void recompressStored(InputStream is, OutputStream os) throws IOException{
+	/**
+	 * Rewrites a nested archive with all its entries stored, so the outer
+	 * entry compresses them all at once. Each entry is streamed through one
+	 * buffer, which spills to a temporary file above
+	 * {@link ZipOptions#getSpillThreshold()}, to know its CRC-32 and size
+	 * before it is written. Archives nested in it are rewritten the same way,
+	 * down to {@code depth} levels.
+	 */
+	private static void recompressStored(InputStream is, OutputStream os, ZipOptions zipOpts, int depth) throws IOException{
 		ZipInputStream zis=new ZipInputStream(is);
 		ZipOutputStream zos=new ZipOutputStream(os);
 
-		ZipEntry inEntry;
-		while((inEntry=zis.getNextEntry())!=null){
-			String inName=inEntry.getName();
-			// if(!keepDirectories && inName.endsWith("/"))
-			// 	continue;
+		try(SpillBuffer content=new SpillBuffer(zipOpts.getSpillThreshold(), zipOpts.getTempDirectory())){
+			ZipEntry inEntry;
+			while((inEntry=zis.getNextEntry())!=null){
+				String inName=inEntry.getName();
+				// if(!keepDirectories && inName.endsWith("/"))
+				// 	continue;
 
-			ZipEntry outEntry=new ZipEntry(inName);
-			outEntry.setTime(inEntry.getTime());
+				ZipEntry outEntry=new ZipEntry(inName);
+				outEntry.setTime(inEntry.getTime());
 
-			// if(keepExtra)
-			//		outEntry.setExtra(inEntry.getExtra());
+				// if(keepExtra)
+				//		outEntry.setExtra(inEntry.getExtra());
 
-			// if(keepComment)
-			// 	outEntry.setComment(inEntry.getComment());
+				// if(keepComment)
+				// 	outEntry.setComment(inEntry.getComment());
 
-			byte[] content=read(inEntry, zis);
+				content.reset();
+				if(depth>1 && isZip(inName))
+					recompressStored(zis, content, zipOpts, depth-1);
+				else
+					copy(zis, content);
 
-			outEntry.setMethod(ZipEntry.STORED);
-			outEntry.setSize(content.length);
-			outEntry.setCompressedSize(content.length);
-			CRC32 crc = new CRC32();
-			crc.update(content);
-			outEntry.setCrc(crc.getValue());
-			zos.putNextEntry(outEntry);
-			zos.write(content);
+				outEntry.setMethod(ZipEntry.STORED);
+				outEntry.setSize(content.size());
+				outEntry.setCompressedSize(content.size());
+				outEntry.setCrc(content.getCrc());
+				zos.putNextEntry(outEntry);
+				content.writeTo(zos);
+			}
 		}
 		zos.finish();
 	}
+
+	/**
+	 * @return the reader of {@link ZipOptions#getReference()}, or {@code null}
+	 *         if it is not set or does not exist.
+	 */
+	private static ZipReader openReference(ZipOptions zipOpts) throws IOException{
+		Path reference=zipOpts.getReference();
+		return reference!=null && Files.isRegularFile(reference) ? new ZipReader(reference) : null;
+	}
+
+	/**
+	 * The state shared by the entries of an archive being recompressed.
+	 */
+	private static final class Archive {
+		private final ZipReader reader;
+		private final Deduplicator dedup;
+		/** the reference archive, or {@code null} */
+		private final ZipReader reference;
+
+		private Archive(ZipReader reader, Deduplicator dedup, ZipReader reference) {
+			this.reader = reader;
+			this.dedup = dedup;
+			this.reference = reference;
+		}
+	}
+
+	private static final class PendingEntry {
+		private final Future<CompressedEntry> future;
+		private final long footprint;
+
+		private PendingEntry(Future<CompressedEntry> future, long footprint) {
+			this.future = future;
+			this.footprint = footprint;
+		}
+	}
+
+	private static final class CompressedEntry implements Closeable {
+		private final ZipReader.Entry source;
+		private final int method;
+		private final long crc;
+		private final long size;
+		/** compressed data, or {@code null} to copy the data of {@link #buffer} or {@link #payload} */
+		private final byte[] data;
+		/** compressed data held until written, or {@code null} */
+		private final SpillBuffer buffer;
+		/** the archive of {@link #payload}, or {@code null} for the one of {@link #source} */
+		private final ZipReader origin;
+		private final ZipReader.Entry payload;
+
+		private CompressedEntry(ZipReader.Entry source, int method, long crc, long size, byte[] data) {
+			this(source, method, crc, size, data, null, null, source);
+		}
+
+		private CompressedEntry(ZipReader.Entry source, int method, long crc, long size, SpillBuffer buffer) {
+			this(source, method, crc, size, null, buffer, null, source);
+		}
+
+		private CompressedEntry(ZipReader.Entry source, int method, long crc, long size, byte[] data, SpillBuffer buffer, ZipReader origin,
+				ZipReader.Entry payload) {
+			this.source = source;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.data = data;
+			this.buffer = buffer;
+			this.origin = origin;
+			this.payload = payload;
+		}
+
+		private long compressedSize() {
+			if (buffer != null)
+				return buffer.size();
+			return data==null ? payload.compressedSize : data.length;
+		}
+
+		/**
+		 * @return {@code true} if the data of {@link #payload} is copied as is.
+		 */
+		private boolean isCopied() {
+			return data == null && buffer == null;
+		}
+
+		/**
+		 * Deletes the temporary file of {@link #buffer}, if any.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (buffer != null)
+				buffer.close();
+		}
+
+		/**
+		 * @return an entry whose original data is copied as is.
+		 */
+		private static CompressedEntry passthrough(ZipReader.Entry source) {
+			return new CompressedEntry(source, source.method, source.crc, source.size, (byte[])null);
+		}
+
+		/**
+		 * @return an entry whose data is copied from the same entry of another
+		 *         archive.
+		 */
+		private static CompressedEntry referenced(ZipReader.Entry source, ZipReader origin, ZipReader.Entry payload) {
+			return new CompressedEntry(source, payload.method, payload.crc, payload.size, null, null, origin, payload);
+		}
+	}
 }
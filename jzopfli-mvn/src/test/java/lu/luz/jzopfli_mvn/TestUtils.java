@@ -1,9 +1,17 @@
 package lu.luz.jzopfli_mvn;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class TestUtils {
 
@@ -19,6 +27,26 @@ public class TestUtils {
 		return bos.toByteArray();
 	}
 
+	public static byte[] inflate(byte[] raw) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		Inflater inflater=new Inflater(true);
+		try{
+			inflater.setInput(raw);
+			byte[] buffer=new byte[1024];
+			while(!inflater.finished()){
+				int read=inflater.inflate(buffer);
+				if(read==0 && inflater.needsInput())
+					throw new EOFException();
+				bos.write(buffer, 0, read);
+			}
+		}catch(DataFormatException e){
+			throw new IOException(e);
+		}finally{
+			inflater.end();
+		}
+		return bos.toByteArray();
+	}
+
 	public static byte[] newByteArray(int length) {
 		byte[] array = new byte[length];
 		try(FileInputStream fis=new FileInputStream("src/test/resources/1musk10.txt")){
@@ -27,4 +55,19 @@ public class TestUtils {
 		}
 		return array;
 	}
+
+	public static byte[] newRandomByteArray(int length) {
+		byte[] array = new byte[length];
+		new Random(length).nextBytes(array);
+		return array;
+	}
+
+	public static void writeZip(File file, String[] names, byte[][] contents) throws IOException {
+		try(ZipOutputStream zos=new ZipOutputStream(new FileOutputStream(file))){
+			for(int i=0; i<names.length; i++){
+				zos.putNextEntry(new ZipEntry(names[i]));
+				zos.write(contents[i]);
+			}
+		}
+	}
 }
@@ -1,20 +1,48 @@
 package lu.luz.jzopfli_mvn;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import lu.luz.jzopfli_stream.ZopfliDeflaterOptions;
+
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ZopfliToolsTest
 {
@@ -29,6 +57,9 @@ public class ZopfliToolsTest
 	private static String entry3Name="folder/subfolder/data3.txt";
 	private static String entry4Name="data4.zip";
 
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+
 	public static void main(String[] args) throws Exception  {
 		ZipOutputStream zos=new ZipOutputStream(new FileOutputStream(test));
 		ZipEntry entry1=new ZipEntry(entry1Name);
@@ -136,4 +167,1122 @@ public class ZopfliToolsTest
 		//		Files.write(Paths.get("OptimizeNestedZips.zip"), recompress);
 		assertTrue(recompress.length<zopfli.length());
 	}
+
+	@Test
+	public void testParallel() throws Exception {
+		byte[] serial;
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZopfliTools.recompress(zis, bos2, new ZipOptions(true, true, true, false));
+			serial= bos2.toByteArray();
+		}
+
+		byte[] parallel;
+		ExecutorService executor=Executors.newFixedThreadPool(4);
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZipOptions zipOpts=new ZipOptions(true, true, true, false);
+			zipOpts.setExecutor(executor);
+			ZopfliTools.recompress(zis, bos2, zipOpts);
+			parallel= bos2.toByteArray();
+		}finally{
+			executor.shutdown();
+		}
+		assertArrayEquals(serial, parallel);
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+		byte[] unbounded;
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZopfliTools.recompress(zis, bos2, new ZipOptions(true, true, true, false));
+			unbounded= bos2.toByteArray();
+		}
+
+		byte[] bounded;
+		ExecutorService executor=Executors.newFixedThreadPool(4);
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZipOptions zipOpts=new ZipOptions(true, true, true, false);
+			zipOpts.setExecutor(executor);
+			zipOpts.setMemoryBudget(new MemoryBudget(1000));
+			ZopfliTools.recompress(zis, bos2, zipOpts);
+			bounded= bos2.toByteArray();
+		}finally{
+			executor.shutdown();
+		}
+		assertArrayEquals(unbounded, bounded);
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		EntryCache cache=new EntryCache(folder.getRoot().toPath(), Long.MAX_VALUE);
+		ZipOptions zipOpts=new ZipOptions(true, true, true, false);
+		zipOpts.setCache(cache);
+
+		byte[] miss;
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZopfliTools.recompress(zis, bos2, zipOpts);
+			miss= bos2.toByteArray();
+		}
+		assertEquals(0, cache.getHits());
+		long misses=cache.getMisses();
+		assertTrue(misses>0);
+
+		byte[] hit;
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZopfliTools.recompress(zis, bos2, zipOpts);
+			hit= bos2.toByteArray();
+		}
+		assertEquals(misses, cache.getHits());
+		assertArrayEquals(miss, hit);
+
+		new EntryCache(folder.getRoot().toPath(), 0).trim();
+		try(ZipFile zis=new ZipFile(test);
+				ByteArrayOutputStream bos2=new ByteArrayOutputStream();	){
+			ZopfliTools.recompress(zis, bos2, zipOpts);
+		}
+		assertEquals(2*misses, cache.getMisses());
+	}
+
+	@Test
+	public void testNeverWorse() throws Exception {
+		File output=folder.newFile("neverWorse.zip");
+		ZipOptions zipOpts=new ZipOptions(true, true, true, true);
+		zipOpts.setNeverWorse(true);
+		try(ZipFile zis=new ZipFile(zopfli);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}
+
+		try(ZipFile in=new ZipFile(zopfli);
+				ZipFile out=new ZipFile(output)){
+			for(ZipEntry outEntry : Collections.list(out.entries())){
+				ZipEntry inEntry=in.getEntry(outEntry.getName());
+				assertTrue(outEntry.getCompressedSize()<=inEntry.getCompressedSize());
+				assertEquals(inEntry.getCrc(), outEntry.getCrc());
+			}
+		}
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		zis.getNextEntry(); //skip folder
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	@Test
+	public void testScreen() throws Exception {
+		File input=folder.newFile("screen.zip");
+		byte[] random=TestUtils.newRandomByteArray(100000);
+		TestUtils.writeZip(input, new String[]{entry1Name, "random.png"}, new byte[][]{entry1Data, random});
+
+		File output=folder.newFile("screened.zip");
+		RecompressStatistics statistics=new RecompressStatistics();
+		ZipOptions zipOpts=new ZipOptions(true, true, true, true);
+		zipOpts.setScreenRatio(0.98);
+		zipOpts.setStatistics(statistics);
+		try(ZipFile zis=new ZipFile(input);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}
+		assertEquals(1, statistics.getScreenedEntries());
+		assertEquals(random.length, statistics.getScreenedBytes());
+		assertEquals(1, statistics.getDeflatedEntries());
+
+		try(ZipFile out=new ZipFile(output)){
+			assertEquals(ZipEntry.STORED, out.getEntry("random.png").getMethod());
+			assertEquals(ZipEntry.DEFLATED, out.getEntry(entry1Name).getMethod());
+		}
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(random,TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	@Test
+	public void testRules() throws Exception {
+		EntryRule skip=new EntryRule();
+		skip.setIncludes(new String[]{"data1.txt"});
+		skip.setMode(EntryRule.Mode.SKIP);
+		EntryRule store=new EntryRule();
+		store.setIncludes(new String[]{"folder/**/*.txt"});
+		store.setMinSize(600);
+		store.setMode(EntryRule.Mode.STORE);
+		EntryRule all=new EntryRule();
+		all.setIncludes(new String[]{"**/*.txt"});
+		all.setMode(EntryRule.Mode.SKIP);
+
+		File output=folder.newFile("rules.zip");
+		ZipOptions zipOpts=new ZipOptions(true, true, true, true);
+		zipOpts.setRules(Arrays.asList(skip, store, all));
+		try(ZipFile zis=new ZipFile(test);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}
+
+		try(ZipFile in=new ZipFile(test);
+				ZipFile out=new ZipFile(output)){
+			assertEquals(in.getEntry(entry1Name).getCompressedSize(), out.getEntry(entry1Name).getCompressedSize());
+			assertEquals(in.getEntry(entry2Name).getCompressedSize(), out.getEntry(entry2Name).getCompressedSize());
+			assertEquals(ZipEntry.STORED, out.getEntry(entry3Name).getMethod());
+		}
+		assertTrue(EntryRule.compile("**/*.class").matcher("A.class").matches());
+		assertTrue(EntryRule.compile("META-INF/").matcher("META-INF/a/b").matches());
+		assertTrue(!EntryRule.compile("*.class").matcher("a/A.class").matches());
+	}
+
+	@Test
+	public void testRuleDeflaterOptions() throws Exception {
+		JzopfliMojo mojo=new JzopfliMojo();
+		mojo.numIterations=15;
+		mojo.blockSplitting=true;
+		mojo.blockSplittingMax=15;
+		mojo.masterBlockSize=20000000;
+		mojo.windowSize=32768;
+		EntryRule fast=new EntryRule();
+		fast.setIncludes(new String[]{"**"});
+		fast.setNumIterations(1);
+		EntryRule store=new EntryRule();
+		store.setIncludes(new String[]{"none/**"});
+		store.setMode(EntryRule.Mode.STORE);
+		mojo.rules=new EntryRule[]{store, fast};
+		mojo.resolveRules();
+		assertEquals(null, store.getDeflaterOptions());
+		assertEquals(1, DeflaterOptions.getNumIterations(fast.getDeflaterOptions()));
+		assertEquals(20000000, DeflaterOptions.getMasterBlockSize(fast.getDeflaterOptions()));
+		ZopfliDeflaterOptions resolved=fast.getDeflaterOptions();
+		mojo.resolveRules();
+		assertTrue(resolved==fast.getDeflaterOptions());
+
+		RecompressStatistics statistics=new RecompressStatistics();
+		ZipOptions zipOpts=new ZipOptions(true, true, true, true);
+		zipOpts.setRules(Arrays.asList(mojo.rules));
+		zipOpts.setStatistics(statistics);
+		try(ZipFile zis=new ZipFile(test)){
+			ZopfliTools.recompress(zis, new ByteArrayOutputStream(), zipOpts, mojo.newDeflaterOptions(null));
+		}
+		assertTrue(statistics.getDeflatedEntries()>0);
+		assertEquals(statistics.getDeflatedEntries(), statistics.getIterations());
+	}
+
+	@Test
+	public void testTimeBudget() throws Exception {
+		File output=folder.newFile("expired.zip");
+		TimeBudget expired=new TimeBudget(0, TimeUnit.SECONDS, new ZopfliDeflaterOptions(), 0.2, 1);
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setTimeBudget(expired);
+		try(ZipFile zis=new ZipFile(test);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}
+		assertEquals(4, expired.getDegradations().size());
+		for(TimeBudget.Degradation degradation : expired.getDegradations())
+			assertEquals(TimeBudget.Level.ORIGINAL, degradation.getLevel());
+		try(ZipFile in=new ZipFile(test);
+				ZipFile out=new ZipFile(output)){
+			assertEquals(in.getEntry(entry2Name).getCompressedSize(), out.getEntry(entry2Name).getCompressedSize());
+		}
+
+		output=folder.newFile("unlimited.zip");
+		TimeBudget unlimited=new TimeBudget(1, TimeUnit.HOURS, new ZopfliDeflaterOptions(), 0.2, 2);
+		zipOpts.setTimeBudget(unlimited);
+		ExecutorService executor=Executors.newFixedThreadPool(2);
+		zipOpts.setExecutor(executor);
+		try(ZipFile zis=new ZipFile(test);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}finally{
+			executor.shutdown();
+		}
+		assertTrue(unlimited.getDegradations().isEmpty());
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry3Data,TestUtils.decompressEntry(zis));
+		zis.close();
+
+		TimeBudget queue=new TimeBudget(10, TimeUnit.SECONDS, new ZopfliDeflaterOptions(), 0.2, 2);
+		queue.measured(1000, 1000*1000);
+		queue.queued(10*1000*1000);
+		assertEquals(TimeBudget.Level.FULL, queue.level(1000));
+		queue.queued(20*1000*1000);
+		assertEquals(TimeBudget.Level.REDUCED, queue.level(1000));
+		queue.finished(25*1000*1000);
+		assertEquals(TimeBudget.Level.FULL, queue.level(1000));
+
+		output=folder.newFile("queued.zip");
+		TimeBudget slow=new TimeBudget(10, TimeUnit.SECONDS, new ZopfliDeflaterOptions(), 0.2, 1);
+		slow.measured(1, TimeUnit.SECONDS.toNanos(1));
+		zipOpts.setTimeBudget(slow);
+		zipOpts.setExecutor(null);
+		try(ZipFile in=new ZipFile(test);
+				OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(in, os, zipOpts);
+		}
+		assertEquals(4, slow.getDegradations().size());
+		for(TimeBudget.Degradation degradation : slow.getDegradations())
+			assertEquals(TimeBudget.Level.DEFLATE, degradation.getLevel());
+		assertEquals(TimeBudget.Level.FULL, slow.level(1));
+	}
+
+	@Test
+	public void testConvergence() throws Exception {
+		File output=folder.newFile("convergence.zip");
+		RecompressStatistics statistics=new RecompressStatistics();
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setConvergence(0.01);
+		zipOpts.setStatistics(statistics);
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setNumIterations(15);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(test.toPath(), Channels.newChannel(os), zipOpts, deflateOpts);
+		}
+		assertTrue(statistics.getDeflatedEntries()>0);
+		assertTrue(statistics.getAverageIterations()<15);
+
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry3Data,TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	@Test
+	public void testMasterBlocks() throws Exception {
+		ByteArrayOutputStream joined=new ByteArrayOutputStream();
+		DeflateJoiner joiner=new DeflateJoiner(0);
+		int[] levels={Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION};
+		for(int i=0; i<levels.length; i++){
+			byte[] data=i==0 ? TestUtils.newRandomByteArray(1000) : TestUtils.newByteArray(5000);
+			Deflater deflater=new Deflater(levels[i], true);
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] raw=new byte[10000];
+			int length=deflater.deflate(raw);
+			deflater.end();
+			joiner.append(Arrays.copyOf(raw, length), i==levels.length-1);
+			joined.write(data);
+		}
+		assertArrayEquals(joined.toByteArray(), TestUtils.inflate(joiner.toByteArray()));
+
+		File input=folder.newFile("large.zip");
+		byte[] large=TestUtils.newByteArray(20000);
+		TestUtils.writeZip(input, new String[]{"large.txt"}, new byte[][]{large});
+		File output=folder.newFile("blocks.zip");
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setMasterBlockSize(3000);
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		ExecutorService executor=Executors.newFixedThreadPool(3);
+		zipOpts.setExecutor(executor);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, deflateOpts);
+		}finally{
+			executor.shutdown();
+		}
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(large,TestUtils.decompressEntry(zis));
+		zis.close();
+
+		File serial=folder.newFile("serial.zip");
+		zipOpts.setExecutor(null);
+		try(OutputStream os=new FileOutputStream(serial)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, deflateOpts);
+		}
+		assertArrayEquals(Files.readAllBytes(output.toPath()), Files.readAllBytes(serial.toPath()));
+	}
+
+	@Test
+	public void testMasterBlocksUnaligned() throws Exception {
+		byte[] random=TestUtils.newRandomByteArray(1000);
+		for(int n=1; n<=11; n++){
+			byte[] text=TestUtils.newByteArray(n);
+			Deflater deflater=new Deflater(Deflater.BEST_COMPRESSION, true);
+			deflater.setInput(text);
+			byte[] mixed=new byte[10000];
+			int length=deflater.deflate(mixed, 0, mixed.length, Deflater.SYNC_FLUSH);
+			deflater.setLevel(Deflater.NO_COMPRESSION);
+			deflater.setInput(random);
+			deflater.finish();
+			while(!deflater.finished())
+				length+=deflater.deflate(mixed, length, mixed.length-length);
+			deflater.end();
+
+			DeflateJoiner joiner=new DeflateJoiner(0);
+			joiner.append(deflateRaw(Deflater.BEST_COMPRESSION, text), false);
+			joiner.append(deflateRaw(Deflater.NO_COMPRESSION, random), false);
+			joiner.append(deflateRaw(Deflater.BEST_COMPRESSION, text), false);
+			joiner.append(Arrays.copyOf(mixed, length), false);
+			joiner.append(deflateRaw(Deflater.NO_COMPRESSION, random), true);
+			ByteArrayOutputStream joined=new ByteArrayOutputStream();
+			for(byte[] data : new byte[][]{text, random, text, text, random, random})
+				joined.write(data);
+			assertArrayEquals("first stream of "+n+" bytes", joined.toByteArray(), TestUtils.inflate(joiner.toByteArray()));
+		}
+
+		ByteArrayOutputStream mixed=new ByteArrayOutputStream();
+		for(int i=0; i<4; i++){
+			mixed.write(TestUtils.newByteArray(3001+i));
+			mixed.write(TestUtils.newRandomByteArray(25001+i));
+		}
+		File input=folder.newFile("mixed.zip");
+		TestUtils.writeZip(input, new String[]{"mixed.bin"}, new byte[][]{mixed.toByteArray()});
+		File output=folder.newFile("mixed-blocks.zip");
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setMasterBlockSize(10007);
+		deflateOpts.setNumIterations(1);
+		ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+		ExecutorService executor=Executors.newFixedThreadPool(4);
+		zipOpts.setExecutor(executor);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, deflateOpts);
+		}finally{
+			executor.shutdown();
+		}
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(mixed.toByteArray(),TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	private static byte[] deflateRaw(int level, byte[] data){
+		Deflater deflater=new Deflater(level, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] raw=new byte[data.length+1000];
+		int length=deflater.deflate(raw);
+		deflater.end();
+		return Arrays.copyOf(raw, length);
+	}
+
+	@Test
+	public void testUnmappedReader() throws Exception {
+		File input=folder.newFile("unmapped.zip");
+		byte[] large=TestUtils.newRandomByteArray(100000);
+		TestUtils.writeZip(input, new String[]{entry1Name, "large.bin", entry3Name}, new byte[][]{entry1Data, large, TestUtils.newByteArray(50000)});
+		try(ZipReader reader=new ZipReader(input.toPath(), true, false);
+				ZipFile zip=new ZipFile(input)){
+			assertEquals(3, reader.entries().size());
+			for(ZipReader.Entry entry : reader.entries()){
+				byte[] expected;
+				try(InputStream is=zip.getInputStream(zip.getEntry(entry.name))){
+					expected=readAll(is);
+				}
+				try(InputStream is=reader.open(entry)){
+					assertArrayEquals(expected, readAll(is));
+				}
+				try(InputStream is=reader.openRaw(entry)){
+					assertEquals(entry.compressedSize, readAll(is).length);
+				}
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws Exception{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		byte[] buffer=new byte[1000];
+		int read;
+		while((read=is.read(buffer))>=0)
+			bos.write(buffer, 0, read);
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testZip64() throws Exception {
+		File many=folder.newFile("many.zip");
+		try(OutputStream os=new FileOutputStream(many)){
+			ZipWriter writer=new ZipWriter(Channels.newChannel(os));
+			for(int i=0; i<70000; i++)
+				writer.write("e"+i, 0, null, null, ZipEntry.STORED, 0, 0, ByteBuffer.allocate(0));
+			writer.finish(null);
+		}
+		try(ZipFile zip=new ZipFile(many)){
+			assertEquals(70000, zip.size());
+		}
+		try(ZipReader reader=new ZipReader(many.toPath())){
+			assertEquals(70000, reader.entries().size());
+		}
+
+		byte[] raw=deflateRaw(Deflater.BEST_COMPRESSION, entry1Data);
+		long size=5000000000L;
+		// a stale ZIP64 field followed by another field
+		byte[] extra={1, 0, 8, 0, 1, 2, 3, 4, 5, 6, 7, 8, (byte)0xfe, (byte)0xca, 0, 0};
+		File large=folder.newFile("large64.zip");
+		try(OutputStream os=new FileOutputStream(large)){
+			ZipWriter writer=new ZipWriter(Channels.newChannel(os));
+			writer.write("large", 0, extra, null, ZipEntry.DEFLATED, 0, size, ByteBuffer.wrap(raw));
+			CRC32 crc=new CRC32();
+			crc.update(entry1Data);
+			writer.write("small", 0, null, null, ZipEntry.DEFLATED, crc.getValue(), entry1Data.length, ByteBuffer.wrap(raw));
+			writer.finish(null);
+		}
+		try(ZipFile zip=new ZipFile(large)){
+			assertEquals(size, zip.getEntry("large").getSize());
+			assertEquals(raw.length, zip.getEntry("large").getCompressedSize());
+			assertEquals(entry1Data.length, zip.getEntry("small").getSize());
+			ByteArrayOutputStream small=new ByteArrayOutputStream();
+			try(InputStream is=zip.getInputStream(zip.getEntry("small"))){
+				byte[] buffer=new byte[1024];
+				int read;
+				while((read=is.read(buffer))>=0)
+					small.write(buffer, 0, read);
+			}
+			assertArrayEquals(entry1Data, small.toByteArray());
+		}
+		try(ZipReader reader=new ZipReader(large.toPath())){
+			ZipReader.Entry entry=reader.entries().get(0);
+			assertEquals(size, entry.size);
+			assertEquals(raw.length, entry.compressedSize);
+			assertEquals(4+16+4, entry.extra.length);
+		}
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		File inMemory=folder.newFile("memory.zip");
+		try(ZipFile zis=new ZipFile(test);
+				OutputStream os=new FileOutputStream(inMemory)){
+			ZopfliTools.recompress(zis, os, new ZipOptions(false, true, true, false));
+		}
+		File spilled=folder.newFile("spilled.zip");
+		ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+		zipOpts.setSpillThreshold(100);
+		zipOpts.setTempDirectory(folder.getRoot().toPath());
+		try(ZipFile zis=new ZipFile(test);
+				OutputStream os=new FileOutputStream(spilled)){
+			ZopfliTools.recompress(zis, os, zipOpts);
+		}
+
+		try(ZipFile expected=new ZipFile(inMemory);
+				ZipFile actual=new ZipFile(spilled)){
+			ZipEntry entry=actual.getEntry(entry4Name);
+			assertEquals(expected.getEntry(entry4Name).getCrc(), entry.getCrc());
+			ZipInputStream nested=new ZipInputStream(actual.getInputStream(entry));
+			assertArrayEquals(entry1Data,TestUtils.decompressEntry(nested));
+			assertArrayEquals(entry2Data,TestUtils.decompressEntry(nested));
+		}
+		assertEquals(2, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testSpillLargeEntries() throws Exception {
+		byte[] large=TestUtils.newByteArray(20000);
+		byte[] random=TestUtils.newRandomByteArray(9000);
+		File input=folder.newFile("large.zip");
+		TestUtils.writeZip(input, new String[]{"large.txt", "random.bin", "small.txt"}, new byte[][]{large, random, entry1Data});
+		File temp=folder.newFolder("spill");
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setMasterBlockSize(3000);
+		DeflaterVariant variant=new DeflaterVariant();
+		variant.setNumIterations(5);
+		byte[][] outputs=new byte[2][];
+		for(int i=0; i<outputs.length; i++){
+			ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+			zipOpts.setVariants(Arrays.asList(variant));
+			zipOpts.setConvergence(0.01);
+			if(i==1){
+				zipOpts.setSpillThreshold(5000);
+				zipOpts.setTempDirectory(temp.toPath());
+			}
+			ExecutorService executor=Executors.newFixedThreadPool(2);
+			zipOpts.setExecutor(executor);
+			ByteArrayOutputStream output=new ByteArrayOutputStream();
+			try{
+				ZopfliTools.recompress(input.toPath(), Channels.newChannel(output), zipOpts, deflateOpts);
+			}finally{
+				executor.shutdown();
+			}
+			outputs[i]=output.toByteArray();
+		}
+		assertArrayEquals(outputs[0], outputs[1]);
+		assertEquals(0, temp.list().length);
+
+		ZipInputStream zis=new ZipInputStream(new ByteArrayInputStream(outputs[1]));
+		assertArrayEquals(large,TestUtils.decompressEntry(zis));
+		assertArrayEquals(random,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		zis.close();
+		// without master blocks, spilled entries are compressed in blocks of the spill threshold
+		for(int i=0; i<outputs.length; i++){
+			ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+			zipOpts.setSpillThreshold(i==0 ? 9000 : Integer.MAX_VALUE);
+			zipOpts.setTempDirectory(temp.toPath());
+			deflateOpts.setMasterBlockSize(i==0 ? 0 : 9000);
+			ByteArrayOutputStream output=new ByteArrayOutputStream();
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(output), zipOpts, deflateOpts);
+			outputs[i]=output.toByteArray();
+		}
+		assertArrayEquals(outputs[1], outputs[0]);
+		assertEquals(0, temp.list().length);
+		zis=new ZipInputStream(new ByteArrayInputStream(outputs[0]));
+		assertArrayEquals(large,TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	@Test
+	public void testNestedDepth() throws Exception {
+		ByteArrayOutputStream jar=new ByteArrayOutputStream();
+		try(ZipOutputStream zos=new ZipOutputStream(jar)){
+			zos.putNextEntry(new ZipEntry(entry3Name));
+			zos.write(entry3Data);
+		}
+		ByteArrayOutputStream war=new ByteArrayOutputStream();
+		try(ZipOutputStream zos=new ZipOutputStream(war)){
+			zos.putNextEntry(new ZipEntry("WEB-INF/lib/lib.jar"));
+			zos.write(jar.toByteArray());
+			zos.putNextEntry(new ZipEntry(entry1Name));
+			zos.write(entry1Data);
+		}
+		File input=folder.newFile("nested.ear");
+		TestUtils.writeZip(input, new String[]{"app.war", entry2Name}, new byte[][]{war.toByteArray(), entry2Data});
+
+		File output=folder.newFile("nested-out.ear");
+		ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+		zipOpts.setNestedDepth(2);
+		ExecutorService executor=Executors.newFixedThreadPool(2);
+		zipOpts.setExecutor(executor);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}finally{
+			executor.shutdown();
+		}
+		assertTrue(output.length()<=input.length());
+
+		ZipInputStream ear=new ZipInputStream(new FileInputStream(output));
+		ZipInputStream warIn=new ZipInputStream(new ByteArrayInputStream(TestUtils.decompressEntry(ear)));
+		ZipInputStream jarIn=new ZipInputStream(new ByteArrayInputStream(TestUtils.decompressEntry(warIn)));
+		assertArrayEquals(entry3Data,TestUtils.decompressEntry(jarIn));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(warIn));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(ear));
+		ear.close();
+		assertEquals(2, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testDeduplication() throws Exception {
+		File input=folder.newFile("duplicates.zip");
+		TestUtils.writeZip(input, new String[]{"a/LICENSE", "b/LICENSE", entry1Name, "c/LICENSE"}, new byte[][]{entry2Data, entry2Data, entry1Data, entry2Data});
+
+		File output=folder.newFile("deduplicated.zip");
+		RecompressStatistics statistics=new RecompressStatistics();
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setStatistics(statistics);
+		ExecutorService executor=Executors.newFixedThreadPool(3);
+		zipOpts.setExecutor(executor);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}finally{
+			executor.shutdown();
+		}
+		assertEquals(2, statistics.getDeflatedEntries());
+		assertEquals(2, statistics.getDeduplicatedEntries());
+		assertEquals(2*entry2Data.length, statistics.getDeduplicatedBytes());
+
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+		zis.close();
+	}
+
+	@Test
+	public void testReference() throws Exception {
+		File v1=folder.newFile("v1.jar");
+		TestUtils.writeZip(v1, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry2Data});
+		File reference=folder.newFile("v1-zopfli.jar");
+		try(OutputStream os=new FileOutputStream(reference)){
+			ZopfliTools.recompress(v1.toPath(), Channels.newChannel(os), new ZipOptions(false, true, true, true), new ZopfliDeflaterOptions());
+		}
+
+		File v2=folder.newFile("v2.jar");
+		TestUtils.writeZip(v2, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry3Data});
+		File output=folder.newFile("v2-zopfli.jar");
+		RecompressStatistics statistics=new RecompressStatistics();
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setReference(reference.toPath());
+		zipOpts.setStatistics(statistics);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(v2.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+		assertEquals(1, statistics.getReferencedEntries());
+		assertEquals(1, statistics.getDeflatedEntries());
+
+		try(ZipFile expected=new ZipFile(reference);
+				ZipFile actual=new ZipFile(output)){
+			assertEquals(expected.getEntry(entry1Name).getCompressedSize(), actual.getEntry(entry1Name).getCompressedSize());
+		}
+		ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+		assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+		assertArrayEquals(entry3Data,TestUtils.decompressEntry(zis));
+		zis.close();
+
+		EntryRule store=new EntryRule();
+		store.setMode(EntryRule.Mode.STORE);
+		ZipOptions storeOpts=new ZipOptions(false, true, true, true);
+		storeOpts.setRules(Arrays.asList(store));
+		try(OutputStream os=new FileOutputStream(reference)){
+			ZopfliTools.recompress(v1.toPath(), Channels.newChannel(os), storeOpts, new ZopfliDeflaterOptions());
+		}
+		statistics=new RecompressStatistics();
+		zipOpts.setStatistics(statistics);
+		zipOpts.setNeverWorse(true);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(v2.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+		assertEquals(0, statistics.getReferencedEntries());
+		try(ZipFile expected=new ZipFile(v2);
+				ZipFile actual=new ZipFile(output)){
+			assertEquals(expected.getEntry(entry1Name).getCompressedSize(), actual.getEntry(entry1Name).getCompressedSize());
+		}
+
+		assertTrue(JzopfliMojo.VERSIONS.compare(new DefaultArtifactVersion("1.10"), new DefaultArtifactVersion("1.9"))>0);
+		assertTrue(JzopfliMojo.VERSIONS.compare(new DefaultArtifactVersion("1.0-SNAPSHOT"), new DefaultArtifactVersion("1.0"))<0);
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		File input=folder.newFile("input.jar");
+		TestUtils.writeZip(input, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry2Data});
+		File output=folder.newFile("output.jar");
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), new ZipOptions(false, true, true, true), new ZopfliDeflaterOptions());
+		}
+
+		File file=new File(folder.getRoot(), "target/jzopfli.manifest");
+		ArchiveManifest manifest=new ArchiveManifest(file.toPath());
+		assertFalse(manifest.isUpToDate(output.toPath(), "options"));
+		manifest.record(output.toPath(), "options");
+		manifest.store();
+
+		manifest=new ArchiveManifest(file.toPath());
+		manifest.load();
+		assertTrue(manifest.isUpToDate(output.toPath(), "options"));
+		assertFalse(manifest.isUpToDate(output.toPath(), "other options"));
+		assertFalse(manifest.isUpToDate(input.toPath(), "options"));
+
+		TestUtils.writeZip(output, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry3Data});
+		assertFalse(manifest.isUpToDate(output.toPath(), "options"));
+
+		File gzip=folder.newFile("output.gz");
+		try(GZIPOutputStream gzos=new GZIPOutputStream(new FileOutputStream(gzip))){
+			gzos.write(entry1Data);
+		}
+		assertFalse(manifest.isUpToDate(gzip.toPath(), "options"));
+		manifest.record(gzip.toPath(), "options");
+		assertTrue(manifest.isUpToDate(gzip.toPath(), "options"));
+		try(GZIPOutputStream gzos=new GZIPOutputStream(new FileOutputStream(gzip))){
+			gzos.write(TestUtils.newRandomByteArray(entry1Data.length));
+		}
+		assertFalse(manifest.isUpToDate(gzip.toPath(), "options"));
+	}
+
+	@Test
+	public void testLargestFirst() throws Exception {
+		LargestFirstExecutor executor=new LargestFirstExecutor(1);
+		try{
+			final CountDownLatch started=new CountDownLatch(1);
+			final CountDownLatch blocked=new CountDownLatch(1);
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					started.countDown();
+					try{
+						blocked.await();
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			started.await();
+			final List<Long> order=Collections.synchronizedList(new ArrayList<Long>());
+			List<Future<?>> tasks=new ArrayList<>();
+			for(final long size : new long[]{250, 750, 500}){
+				LargestFirstExecutor.EntryTask<Void> task=new LargestFirstExecutor.EntryTask<>(new Callable<Void>() {
+					@Override public Void call() {
+						order.add(size);
+						return null;
+					}
+				}, size);
+				executor.execute(task);
+				tasks.add(task);
+			}
+			blocked.countDown();
+			for(Future<?> task : tasks)
+				task.get();
+			assertEquals(Arrays.asList(750L, 500L, 250L), order);
+
+			File output=folder.newFile("largestFirst.zip");
+			ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+			zipOpts.setExecutor(executor);
+			zipOpts.setLargestFirst(true);
+			try(OutputStream os=new FileOutputStream(output)){
+				ZopfliTools.recompress(test.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+			}
+			ZipInputStream zis=new ZipInputStream(new FileInputStream(output));
+			assertArrayEquals(entry1Data,TestUtils.decompressEntry(zis));
+			assertArrayEquals(entry2Data,TestUtils.decompressEntry(zis));
+			assertArrayEquals(entry3Data,TestUtils.decompressEntry(zis));
+			zis.close();
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testReport() throws Exception {
+		File input=folder.newFile("report.zip");
+		byte[] random=TestUtils.newRandomByteArray(100000);
+		TestUtils.writeZip(input, new String[]{entry1Name, "random.png", "a/LICENSE", "b/LICENSE"}, new byte[][]{entry1Data, random, entry2Data, entry2Data});
+
+		File output=folder.newFile("reported.zip");
+		OptimizationReport report=new OptimizationReport();
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setScreenRatio(0.98);
+		zipOpts.setListener(report);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+
+		List<EntryMetrics> entries=report.getEntries();
+		assertEquals(4, entries.size());
+		for(EntryMetrics entry : entries){
+			assertEquals(input.getPath(), entry.getArchive());
+			assertTrue(entry.getTotalNanos()>=entry.getInflateNanos()+entry.getDeflateNanos());
+			if(entry.getName().equals("random.png")){
+				assertEquals(EntryMetrics.Outcome.SCREENED, entry.getOutcome());
+				assertEquals(0, entry.getDeflateNanos());
+			}else if(entry.getName().equals(entry1Name)){
+				assertEquals(EntryMetrics.Outcome.ZOPFLI, entry.getOutcome());
+				assertEquals(15, entry.getIterations());
+				assertTrue(entry.getDeflateNanos()>0);
+			}
+		}
+		assertTrue(entries.get(2).getOutcome()==EntryMetrics.Outcome.DEDUPLICATED ^ entries.get(3).getOutcome()==EntryMetrics.Outcome.DEDUPLICATED);
+
+		File json=folder.newFile("report.json");
+		report.writeJson(json.toPath(), 1);
+		String summary=new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8);
+		assertTrue(summary.contains("\"entries\": 4"));
+		assertTrue(summary.contains("\"p50\": "));
+		File csv=folder.newFile("report.csv");
+		report.writeCsv(csv.toPath());
+		assertEquals(5, Files.readAllLines(csv.toPath(), StandardCharsets.UTF_8).size());
+
+		assertEquals(2.0, OptimizationReport.percentile(new double[]{1, 2, 3, 4}, 50), 0);
+		assertEquals(4.0, OptimizationReport.percentile(new double[]{1, 2, 3, 4}, 100), 0);
+	}
+
+	@Test
+	public void testEstimate() throws Exception {
+		File input=folder.newFile("estimate.jar");
+		String[] names=new String[21];
+		byte[][] contents=new byte[21][];
+		for(int i=0; i<20; i++){
+			names[i]="Class"+i+".class";
+			contents[i]=TestUtils.newByteArray(200+50*i);
+		}
+		names[20]="random.png";
+		contents[20]=TestUtils.newRandomByteArray(10000);
+		TestUtils.writeZip(input, names, contents);
+
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setNeverWorse(true);
+		OptimizationReport report=new OptimizationReport();
+		zipOpts.setListener(report);
+		try(OutputStream os=new FileOutputStream(folder.newFile("estimated.jar"))){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+		long gain=0;
+		for(EntryMetrics entry : report.getEntries())
+			gain+=entry.getGain();
+		zipOpts.setListener(null);
+
+		GainEstimate exact=GainEstimate.estimate(input.toPath(), zipOpts, new ZopfliDeflaterOptions(), 100, 0);
+		assertEquals(21, exact.getEntries());
+		assertEquals(21, exact.getSampledEntries());
+		assertEquals(gain, exact.getGain());
+		assertEquals(0, exact.getGainError());
+
+		GainEstimate sampled=GainEstimate.estimate(input.toPath(), zipOpts, new ZopfliDeflaterOptions(), 5, 0);
+		assertEquals(21, sampled.getEntries());
+		assertEquals(6, sampled.getSampledEntries());
+		assertEquals(exact.getSize(), sampled.getSize());
+		assertTrue(sampled.getSampledSize()<sampled.getSize());
+		assertTrue(Math.abs(sampled.getGain()-gain)<=Math.max(sampled.getGainError(), gain/10));
+	}
+
+	@Test
+	public void testVariants() throws Exception {
+		File input=folder.newFile("variants.zip");
+		byte[] large=TestUtils.newByteArray(20000);
+		TestUtils.writeZip(input, new String[]{"large.txt"}, new byte[][]{large});
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setNumIterations(1);
+		deflateOpts.setMasterBlockSize(3000);
+
+		DeflaterVariant fixed=new DeflaterVariant();
+		fixed.setStrategy(ZopfliDeflaterOptions.Strategy.ZOPFLI_FIXED_TREE);
+		DeflaterVariant iterations=new DeflaterVariant();
+		iterations.setNumIterations(5);
+		DeflaterVariant last=new DeflaterVariant();
+		last.setBlockSplittingLast(true);
+		List<DeflaterVariant> variants=Arrays.asList(fixed, iterations, last);
+
+		ExecutorService executor=Executors.newFixedThreadPool(3);
+		try{
+			long smallest=compressedSize(input, deflateOpts, null, executor);
+			for(DeflaterVariant variant : variants)
+				smallest=Math.min(smallest, compressedSize(input, variant.apply(deflateOpts), null, executor));
+			assertEquals(smallest, compressedSize(input, deflateOpts, variants, executor));
+			assertEquals(smallest, compressedSize(input, deflateOpts, variants, null));
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	private long compressedSize(File input, ZopfliDeflaterOptions deflateOpts, List<DeflaterVariant> variants, ExecutorService executor) throws Exception {
+		File output=folder.newFile();
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		zipOpts.setNeverWorse(false);
+		zipOpts.setVariants(variants);
+		zipOpts.setExecutor(executor);
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(input.toPath(), Channels.newChannel(os), zipOpts, deflateOpts);
+		}
+		try(ZipInputStream zis=new ZipInputStream(new FileInputStream(output))){
+			assertArrayEquals(TestUtils.newByteArray(20000), TestUtils.decompressEntry(zis));
+		}
+		try(ZipFile zip=new ZipFile(output)){
+			return zip.getEntry("large.txt").getCompressedSize();
+		}
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+		zipOpts.setNestedDepth(1);
+		zipOpts.setTempDirectory(folder.getRoot().toPath());
+		ByteArrayOutputStream expected=new ByteArrayOutputStream();
+		ZopfliTools.recompress(test.toPath(), Channels.newChannel(expected), zipOpts, new ZopfliDeflaterOptions());
+
+		byte[] archive=Files.readAllBytes(test.toPath());
+		for(int threshold : new int[]{archive.length, 100}){
+			zipOpts.setSpillThreshold(threshold);
+			ByteArrayOutputStream streamed=new ByteArrayOutputStream();
+			ZopfliTools.recompress(new ByteArrayInputStream(archive), streamed, zipOpts, new ZopfliDeflaterOptions());
+			assertArrayEquals(expected.toByteArray(), streamed.toByteArray());
+		}
+		assertEquals(0, folder.getRoot().list().length);
+
+		File output=new File(folder.getRoot(), "main.zip");
+		ByteArrayOutputStream err=new ByteArrayOutputStream();
+		PrintStream ps=new PrintStream(err, true);
+		assertEquals(2, JzopfliMain.run(new String[]{"--iterations"}, ps));
+		assertEquals(2, JzopfliMain.run(new String[]{test.getPath()}, ps));
+		assertEquals(1, JzopfliMain.run(new String[]{"missing.zip", output.getPath()}, ps));
+		assertEquals(0, JzopfliMain.run(new String[]{"--nested-depth", "1", "--keep-extra", "--keep-comment", test.getPath(), output.getPath()}, ps));
+		assertArrayEquals(expected.toByteArray(), Files.readAllBytes(output.toPath()));
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		byte[] text=TestUtils.newByteArray(20000);
+		byte[] random=TestUtils.newRandomByteArray(5000);
+		ByteArrayOutputStream input=new ByteArrayOutputStream();
+		// a member with incompressible data in master blocks of its own
+		try(GZIPOutputStream gzos=new GZIPOutputStream(input)){
+			gzos.write(text, 0, 3000);
+			gzos.write(random);
+			gzos.write(text);
+		}
+		// a member with a name and a header checksum, holding incompressible data
+		ByteArrayOutputStream header=new ByteArrayOutputStream();
+		header.write(new byte[]{0x1f, (byte)0x8b, 8, 8|2, 1, 2, 3, 4, 0, 3});
+		header.write("random.bin\0".getBytes(StandardCharsets.ISO_8859_1));
+		CRC32 crc=new CRC32();
+		crc.update(header.toByteArray());
+		header.write((int)crc.getValue());
+		header.write((int)crc.getValue()>>>8);
+		input.write(header.toByteArray());
+		Deflater deflater=new Deflater(Deflater.BEST_SPEED, true);
+		deflater.setInput(random);
+		deflater.finish();
+		byte[] raw=new byte[10000];
+		input.write(raw, 0, deflater.deflate(raw));
+		deflater.end();
+		crc.reset();
+		crc.update(random);
+		for(long value : new long[]{crc.getValue(), random.length})
+			for(int i=0; i<4; i++)
+				input.write((int)(value>>>8*i));
+		input.write(new byte[4]);
+
+		File file=folder.newFile("data.tar.gz");
+		Files.write(file.toPath(), input.toByteArray());
+		assertTrue(GzipTools.isGzip(file.toPath()));
+		assertFalse(GzipTools.isGzip(test.toPath()));
+
+		ByteArrayOutputStream expected=new ByteArrayOutputStream();
+		expected.write(text, 0, 3000);
+		expected.write(random);
+		expected.write(text);
+		expected.write(random);
+		ZopfliDeflaterOptions deflateOpts=new ZopfliDeflaterOptions();
+		deflateOpts.setMasterBlockSize(3000);
+		byte[] parallel=null;
+		for(boolean neverWorse : new boolean[]{true, false, false}){
+			ZipOptions zipOpts=new ZipOptions();
+			zipOpts.setNeverWorse(neverWorse);
+			ExecutorService executor=parallel==null ? Executors.newFixedThreadPool(3) : null;
+			zipOpts.setExecutor(executor);
+			ByteArrayOutputStream output=new ByteArrayOutputStream();
+			try{
+				GzipTools.recompress(new ByteArrayInputStream(input.toByteArray()), output, zipOpts, deflateOpts);
+			}finally{
+				if(executor!=null)
+					executor.shutdown();
+			}
+			byte[] recompressed=output.toByteArray();
+			if(!neverWorse && executor!=null)
+				parallel=recompressed;
+			else if(!neverWorse)
+				assertArrayEquals(parallel, recompressed);
+			if(neverWorse)
+				assertTrue(recompressed.length<=input.size());
+			assertTrue(new String(recompressed, StandardCharsets.ISO_8859_1).contains("random.bin\0"));
+			assertArrayEquals(new byte[4], Arrays.copyOfRange(recompressed, recompressed.length-4, recompressed.length));
+
+			ByteArrayOutputStream inflated=new ByteArrayOutputStream();
+			try(GZIPInputStream gzis=new GZIPInputStream(new ByteArrayInputStream(recompressed))){
+				byte[] buffer=new byte[1024];
+				int read;
+				while((read=gzis.read(buffer))>=0)
+					inflated.write(buffer, 0, read);
+			}
+			assertArrayEquals(expected.toByteArray(), inflated.toByteArray());
+		}
+
+		File gzip=folder.newFile("input.gz");
+		Files.write(gzip.toPath(), input.toByteArray());
+		File verified=new File(folder.getRoot(), "verified.gz");
+		File streamed=new File(folder.getRoot(), "streamed.gz");
+		PrintStream err=new PrintStream(new ByteArrayOutputStream(), true);
+		String temp=folder.newFolder("temp").getPath();
+		assertEquals(0, JzopfliMain.run(new String[]{"--temp-directory", temp, gzip.getPath(), verified.getPath()}, err));
+		assertEquals(0, JzopfliMain.run(new String[]{"--no-verify", gzip.getPath(), streamed.getPath()}, err));
+		assertArrayEquals(Files.readAllBytes(streamed.toPath()), Files.readAllBytes(verified.toPath()));
+		assertTrue(verified.length()<=input.size());
+		assertEquals(0, new File(temp).list().length);
+		ByteArrayOutputStream inflated=new ByteArrayOutputStream();
+		try(GZIPInputStream gzis=new GZIPInputStream(new FileInputStream(verified))){
+			byte[] buffer=new byte[1024];
+			int read;
+			while((read=gzis.read(buffer))>=0)
+				inflated.write(buffer, 0, read);
+		}
+		assertArrayEquals(expected.toByteArray(), inflated.toByteArray());
+	}
+
+	@Test
+	public void testVerify() throws Exception {
+		ZipOptions zipOpts=new ZipOptions(false, true, true, false);
+		zipOpts.setNestedDepth(1);
+		File output=folder.newFile("verified.zip");
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(test.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+		ExecutorService executor=Executors.newFixedThreadPool(3);
+		zipOpts.setExecutor(executor);
+		try{
+			ArchiveVerifier.verify(test.toPath(), output.toPath(), zipOpts);
+
+			File source=folder.newFile("source.zip");
+			TestUtils.writeZip(source, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry2Data});
+			File changed=folder.newFile("changed.zip");
+			TestUtils.writeZip(changed, new String[]{entry1Name, entry2Name}, new byte[][]{entry1Data, entry3Data});
+			File missing=folder.newFile("missing.zip");
+			TestUtils.writeZip(missing, new String[]{entry1Name}, new byte[][]{entry1Data});
+			File[] nested=new File[2];
+			for(int i=0; i<nested.length; i++){
+				nested[i]=folder.newFile("nested"+i+".zip");
+				ByteArrayOutputStream inner=new ByteArrayOutputStream();
+				try(ZipOutputStream zos=new ZipOutputStream(inner)){
+					zos.putNextEntry(new ZipEntry(entry1Name));
+					zos.write(i==0 ? entry1Data : entry2Data);
+				}
+				TestUtils.writeZip(nested[i], new String[]{entry4Name}, new byte[][]{inner.toByteArray()});
+			}
+			File[][] corrupted={{source, changed}, {source, missing}, nested};
+			for(File[] pair : corrupted)
+				try{
+					ArchiveVerifier.verify(pair[0].toPath(), pair[1].toPath(), zipOpts);
+					throw new AssertionError(pair[1]+" verified");
+				}catch(ZipException e){
+				}
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testProgress() throws Exception {
+		ZipOptions zipOpts=new ZipOptions(false, true, true, true);
+		RecompressProgress progress=new RecompressProgress();
+		zipOpts.setProgress(progress);
+		assertEquals(-1, progress.getRemainingNanos());
+
+		// records the events of the recompression if the JVM has Flight Recorder
+		Object recording=null;
+		Class<?> recordingClass=null;
+		if(FlightRecorder.ENTRY.isAvailable()){
+			recordingClass=Class.forName("jdk.jfr.Recording");
+			recording=recordingClass.getConstructor().newInstance();
+			for(String name : new String[]{"lu.luz.jzopfli.Entry", "lu.luz.jzopfli.Archive"})
+				recordingClass.getMethod("enable", String.class).invoke(recording, name);
+			recordingClass.getMethod("start").invoke(recording);
+		}
+		File output=folder.newFile("progress.zip");
+		try(OutputStream os=new FileOutputStream(output)){
+			ZopfliTools.recompress(test.toPath(), Channels.newChannel(os), zipOpts, new ZopfliDeflaterOptions());
+		}
+
+		long entries=0;
+		long bytes=0;
+		try(ZipFile zip=new ZipFile(test)){
+			for(ZipEntry entry : Collections.list(zip.entries()))
+				if(!entry.isDirectory()){
+					entries++;
+					bytes+=entry.getSize();
+				}
+		}
+		assertEquals(entries, progress.getTotalEntries());
+		assertEquals(entries, progress.getDoneEntries());
+		assertEquals(bytes, progress.getTotalBytes());
+		assertEquals(bytes, progress.getDoneBytes());
+		assertEquals(0, progress.getRemainingNanos());
+		assertTrue(progress.sampleThroughput()>0);
+		assertTrue(new JzopfliMojo().getMessage("progress", 1, 2, 0.5, 1.0, 0.1, -1).contains("unknown"));
+		assertTrue(new JzopfliMojo().getMessage("progress", 1, 2, 0.5, 1.0, 0.1, 42.0).contains("42 s"));
+
+		if(recording!=null){
+			recordingClass.getMethod("stop").invoke(recording);
+			File dump=folder.newFile("events.jfr");
+			recordingClass.getMethod("dump", java.nio.file.Path.class).invoke(recording, dump.toPath());
+			recordingClass.getMethod("close").invoke(recording);
+			List<?> events=(List<?>)Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", java.nio.file.Path.class).invoke(null, dump.toPath());
+			int entryEvents=0;
+			int archiveEvents=0;
+			for(Object event : events){
+				Object type=event.getClass().getMethod("getEventType").invoke(event);
+				String name=(String)type.getClass().getMethod("getName").invoke(type);
+				if(name.equals("lu.luz.jzopfli.Entry"))
+					entryEvents++;
+				else if(name.equals("lu.luz.jzopfli.Archive"))
+					archiveEvents++;
+			}
+			assertTrue(entryEvents>=entries);
+			assertTrue(archiveEvents>=1);
+		}
+	}
 }